@@ -16,6 +16,8 @@
 
 package com.android.loaderapp;
 
+import com.android.loaderapp.util.ContactPhotoCache;
+
 import android.Manifest;
 import android.content.AsyncQueryHandler;
 import android.content.ContentResolver;
@@ -75,6 +77,9 @@ public class ContactHeaderWidget extends FrameLayout implements View.OnClickList
 
     protected Uri mContactUri;
 
+    /** The contact last bound from a query, or -1. */
+    private long mBoundContactId = -1;
+
     protected String[] mExcludeMimes = null;
 
     protected ContentResolver mContentResolver;
@@ -223,6 +228,17 @@ public class ContactHeaderWidget extends FrameLayout implements View.OnClickList
         }
     }
 
+    /** What a photo query needs to remember until it completes. */
+    private static class PhotoQueryCookie {
+        final long photoId;
+        final Uri lookupUri;
+
+        PhotoQueryCookie(long photoId, Uri lookupUri) {
+            this.photoId = photoId;
+            this.lookupUri = lookupUri;
+        }
+    }
+
     private class QueryHandler extends AsyncQueryHandler {
 
         public QueryHandler(ContentResolver cr) {
@@ -240,20 +256,23 @@ public class ContactHeaderWidget extends FrameLayout implements View.OnClickList
                 switch (token) {
                     case TOKEN_PHOTO_QUERY: {
                         //Set the photo
+                        final PhotoQueryCookie photoCookie = (PhotoQueryCookie) cookie;
                         Bitmap photoBitmap = null;
-                        if (cursor != null && cursor.moveToFirst()
-                                && !cursor.isNull(PhotoQuery.PHOTO)) {
-                            byte[] photoData = cursor.getBlob(PhotoQuery.PHOTO);
-                            photoBitmap = BitmapFactory.decodeByteArray(photoData, 0,
-                                    photoData.length, null);
+                        if (cursor != null) {
+                            byte[] photoData = null;
+                            if (cursor.moveToFirst() && !cursor.isNull(PhotoQuery.PHOTO)) {
+                                photoData = cursor.getBlob(PhotoQuery.PHOTO);
+                            }
+                            photoBitmap = ContactPhotoCache.getInstance(mContext).decode(
+                                    photoCookie.photoId, photoData, 1);
                         }
 
                         if (photoBitmap == null) {
                             photoBitmap = loadPlaceholderPhoto(null);
                         }
                         setPhoto(photoBitmap);
-                        if (cookie != null && cookie instanceof Uri) {
-                            mPhotoView.assignContactUri((Uri) cookie);
+                        if (photoCookie.lookupUri != null) {
+                            mPhotoView.assignContactUri(photoCookie.lookupUri);
                         }
                         invalidate();
                         break;
@@ -261,11 +280,17 @@ public class ContactHeaderWidget extends FrameLayout implements View.OnClickList
                     case TOKEN_CONTACT_INFO: {
                         if (cursor != null && cursor.moveToFirst()) {
                             bindContactInfo(cursor);
-                            final Uri lookupUri = Contacts.getLookupUri(
-                                    cursor.getLong(ContactQuery._ID),
+                            final long contactId = cursor.getLong(ContactQuery._ID);
+                            final Uri lookupUri = Contacts.getLookupUri(contactId,
                                     cursor.getString(ContactQuery.LOOKUP_KEY));
 
                             final long photoId = cursor.getLong(ContactQuery.PHOTO_ID);
+                            if (contactId == mBoundContactId) {
+                                // Rebound because the contact changed; its photo
+                                // may have been edited without its id changing
+                                ContactPhotoCache.getInstance(mContext).invalidate(photoId);
+                            }
+                            mBoundContactId = contactId;
 
                             setPhotoId(photoId, lookupUri);
                         } else {
@@ -377,7 +402,13 @@ public class ContactHeaderWidget extends FrameLayout implements View.OnClickList
      * @hide
      */
     public void setPhotoId(final long photoId, final Uri lookupUri) {
-        if (photoId == 0) {
+        final ContactPhotoCache cache = ContactPhotoCache.getInstance(mContext);
+        final Bitmap cached = photoId != 0 ? cache.peek(photoId, 1) : null;
+        if (cached != null) {
+            setPhoto(cached);
+            mPhotoView.assignContactUri(lookupUri);
+            invalidate();
+        } else if (photoId == 0 || cache.isKnownMissing(photoId)) {
             setPhoto(loadPlaceholderPhoto(null));
             mPhotoView.assignContactUri(lookupUri);
             invalidate();
@@ -606,7 +637,7 @@ public class ContactHeaderWidget extends FrameLayout implements View.OnClickList
             resetAsyncQueryHandler();
         }
 
-        mQueryHandler.startQuery(TOKEN_PHOTO_QUERY, lookupKey,
+        mQueryHandler.startQuery(TOKEN_PHOTO_QUERY, new PhotoQueryCookie(photoId, lookupKey),
                 ContentUris.withAppendedId(Data.CONTENT_URI, photoId), PhotoQuery.COLUMNS,
                 null, null, null);
     }
@@ -623,6 +654,7 @@ public class ContactHeaderWidget extends FrameLayout implements View.OnClickList
         setSocialSnippet(null);
         setPresence(0);
         mContactUri = null;
+        mBoundContactId = -1;
         mExcludeMimes = null;
     }
 
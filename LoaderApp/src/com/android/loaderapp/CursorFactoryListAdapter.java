@@ -18,6 +18,7 @@ package com.android.loaderapp;
 
 import com.android.loaderapp.R;
 import com.android.loaderapp.model.ContactsListLoader;
+import com.android.loaderapp.util.ContactPhotoLoader;
 
 import android.content.Context;
 import android.database.Cursor;
@@ -37,13 +38,19 @@ public class CursorFactoryListAdapter extends CursorAdapter {
 
     /**
      * A simple view factory that inflates the views from XML and puts the display
-     * name in @id/name.
+     * name in @id/name, along with the contact's photo if given a photo loader.
      */
     public static class ResourceViewFactory implements ViewFactory {
         private int mResId;
+        private ContactPhotoLoader mPhotoLoader;
 
         public ResourceViewFactory(int resId) {
+            this(resId, null);
+        }
+
+        public ResourceViewFactory(int resId, ContactPhotoLoader photoLoader) {
             mResId = resId;
+            mPhotoLoader = photoLoader;
         }
 
         public View newView(Context context, ViewGroup parent) {
@@ -55,6 +62,9 @@ public class CursorFactoryListAdapter extends CursorAdapter {
         public void bindView(View view, Context context, Cursor cursor) {
             TextView name = (TextView) view.findViewById(R.id.name);
             name.setText(cursor.getString(ContactsListLoader.COLUMN_NAME));
+            if (mPhotoLoader != null) {
+                mPhotoLoader.loadPhoto(name, cursor.getLong(ContactsListLoader.COLUMN_PHOTO_ID));
+            }
         }
     }
 
@@ -27,6 +27,7 @@ import com.android.loaderapp.model.Collapser.Collapsible;
 import com.android.loaderapp.model.ContactLoader.ContactData;
 import com.android.loaderapp.model.ContactsSource.DataKind;
 import com.android.loaderapp.util.Constants;
+import com.android.loaderapp.util.ContactPhotoCache;
 import com.android.loaderapp.util.ContactPresenceIconUtil;
 import com.android.loaderapp.util.ContactsUtils;
 import com.android.loaderapp.util.DataStatus;
@@ -184,6 +185,12 @@ public class ContactFragment extends LoaderManagingFragment<ContactData>
         return view;
     }
 
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        ContactPhotoCache.getInstance(getActivity()).clear();
+    }
+
     @Override
     public void onInitializeLoaders() {
         if (mUri != null) {
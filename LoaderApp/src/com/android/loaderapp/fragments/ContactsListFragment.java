@@ -20,6 +20,8 @@ import com.android.loaderapp.CursorFactoryListAdapter;
 import com.android.loaderapp.R;
 import com.android.loaderapp.CursorFactoryListAdapter.ResourceViewFactory;
 import com.android.loaderapp.model.ContactsListLoader;
+import com.android.loaderapp.util.ContactPhotoCache;
+import com.android.loaderapp.util.ContactPhotoLoader;
 
 import android.app.LoaderManagingFragment;
 import android.content.Loader;
@@ -31,14 +33,19 @@ import android.provider.ContactsContract.Contacts;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.ListView;
+import android.widget.AbsListView.OnScrollListener;
+import android.widget.AbsListView.RecyclerListener;
 import android.widget.AdapterView.OnItemClickListener;
 
 public class ContactsListFragment extends LoaderManagingFragment<Cursor>
-        implements OnItemClickListener {
+        implements OnItemClickListener, OnScrollListener, RecyclerListener {
     private static final int LOADER_LIST = 1;
 
+    private static final int PHOTO_SIZE_DIP = 48;
+
     public static final int MODE_NULL = 0;
     public static final int MODE_VISIBLE = 1;
     public static final int MODE_STREQUENT = 2;
@@ -53,6 +60,7 @@ public class ContactsListFragment extends LoaderManagingFragment<Cursor>
     Controller mController;
     ListView mList;
     CursorFactoryListAdapter mAdapter;
+    ContactPhotoLoader mPhotoLoader;
     int mMode;
     String mGroupName;
 
@@ -87,6 +95,10 @@ public class ContactsListFragment extends LoaderManagingFragment<Cursor>
 
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
+        if (mAdapter.getCursor() != null) {
+            // A requery: the contacts changed, maybe their photos in place
+            mPhotoLoader.checkForChangedPhotos();
+        }
         mAdapter.changeCursor(data);
     }
 
@@ -94,13 +106,42 @@ public class ContactsListFragment extends LoaderManagingFragment<Cursor>
     public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedState) {
         ListView list = (ListView) inflater.inflate(R.layout.contacts_list, container, false);
         list.setOnItemClickListener(this);
+        list.setOnScrollListener(this);
+        list.setRecyclerListener(this);
+        if (mPhotoLoader == null) {
+            final float density = getActivity().getResources().getDisplayMetrics().density;
+            mPhotoLoader = new ContactPhotoLoader(getActivity(), R.drawable.ic_contact_picture,
+                    (int) (PHOTO_SIZE_DIP * density + 0.5f));
+        }
         mAdapter = new CursorFactoryListAdapter(getActivity(),
-                new ResourceViewFactory(getListItemResId()));
+                new ResourceViewFactory(getListItemResId(), mPhotoLoader));
         list.setAdapter(mAdapter);
         mList = list;
         return list;
     }
 
+    @Override
+    public void onResume() {
+        super.onResume();
+        if (mPhotoLoader != null) {
+            mPhotoLoader.resume();
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        ContactPhotoCache.getInstance(getActivity()).clear();
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (mPhotoLoader != null) {
+            mPhotoLoader.stop();
+        }
+    }
+
     public void setMode(int mode) {
         boolean reload = mode != mMode;
         mMode = mode;
@@ -153,6 +194,23 @@ public class ContactsListFragment extends LoaderManagingFragment<Cursor>
         }
     }
 
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+        // Don't fetch photos for rows that fly past; load once the list slows down
+        if (scrollState == OnScrollListener.SCROLL_STATE_FLING) {
+            mPhotoLoader.pause();
+        } else {
+            mPhotoLoader.resume();
+        }
+    }
+
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+            int totalItemCount) {
+    }
+
+    public void onMovedToScrapHeap(View view) {
+        mPhotoLoader.cancel(view);
+    }
+
     private int getListItemResId() {
         // This should be done using the resource system, but for now we want to override
         // the configuration for running xlarge UIs on normal screens and vice versa
@@ -8,6 +8,7 @@ import com.google.android.collect.Maps;
 import android.content.AsyncTaskLoader;
 import android.content.ContentResolver;
 import android.content.ContentUris;
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.Entity;
 import android.content.EntityIterator;
@@ -15,25 +16,67 @@ import android.content.Loader.ForceLoadContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.SystemClock;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.DisplayNameSources;
 import android.provider.ContactsContract.RawContacts;
 import android.provider.ContactsContract.RawContactsEntity;
 import android.provider.ContactsContract.StatusUpdates;
+import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Loads a single Contact and all it constituent RawContacts.
  */
 public class ContactLoader extends AsyncTaskLoader<ContactLoader.ContactData> {
+    private static final String TAG = "ContactLoader";
+
+    /** Enough threads for the queries of one load, shared by all loaders. */
+    private static final int STAGE_THREADS = 2;
+
+    private static final ThreadFactory sThreadFactory = new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "ContactLoader #" + mCount.getAndIncrement());
+        }
+    };
+
+    private static final ThreadPoolExecutor sStageExecutor = new ThreadPoolExecutor(
+            STAGE_THREADS, STAGE_THREADS, 10, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), sThreadFactory);
+
+    static {
+        sStageExecutor.allowCoreThreadTimeOut(true);
+    }
+
     Uri mLookupUri;
-    ContactData mContact;
+    /** The last result; a reload only re-reads what changed since. */
+    volatile ContactData mContact;
     ForceLoadContentObserver mObserver;
     boolean mDestroyed;
 
+    /** Loads in progress; a forced reload can overlap the one it replaces. */
+    private final ArrayList<Load> mRunningLoads = Lists.newArrayList();
+    /**
+     * Set by cancelQueries() for a load started but not yet run, cleared
+     * when a new load is forced. Guarded by mRunningLoads.
+     */
+    private boolean mCancelPending;
+
     public interface Callbacks {
         public void onContactLoaded(ContactData contact);
     }
@@ -57,7 +100,8 @@ public class ContactLoader extends AsyncTaskLoader<ContactLoader.ContactData> {
 
     @Override
     public ContactData loadInBackground() {
-        ContentResolver resolver = getContext().getContentResolver();
+        final long start = SystemClock.uptimeMillis();
+        final ContentResolver resolver = getContext().getContentResolver();
         ContactData result = new ContactData();
 
         // Undo the lookup URI
@@ -73,64 +117,431 @@ public class ContactLoader extends AsyncTaskLoader<ContactLoader.ContactData> {
             return null;
         }
         result.uri = contactUri;
+        final long lookupMillis = SystemClock.uptimeMillis() - start;
 
-        // Read available social rows
+        // The rest only needs the contact URI, so run the queries side by side:
+        // the smaller ones on the pool, the raw contacts on this thread.
         final Uri dataUri = Uri.withAppendedPath(contactUri, Contacts.Data.CONTENT_DIRECTORY);
-        Cursor cursor = resolver.query(dataUri, StatusQuery.PROJECTION, StatusUpdates.PRESENCE
-                + " IS NOT NULL OR " + StatusUpdates.STATUS + " IS NOT NULL", null, null);
+        final long contactId = ContentUris.parseId(contactUri);
+        final ContactData previous = mContact;
+        final StatusStage statusStage = new StatusStage(resolver, dataUri);
+        final NameStage nameStage = new NameStage(resolver, dataUri);
+        VersionStage versionStage = null;
+        EntityStage entityStage = null;
+        ArrayList<Entity> kept = null;
+        boolean nameReloaded = false;
+        final Load load;
+        synchronized (mRunningLoads) {
+            load = new Load(mCancelPending);
+            mRunningLoads.add(load);
+        }
+        try {
+            final Future<HashMap<Long, DataStatus>> statuses = load.submit(statusStage);
+            if (statuses == null) {
+                return null;
+            }
+
+            // After a change to the same contact, reuse the raw contacts whose
+            // version hasn't moved. A presence or status update leaves every
+            // version alone, so only the statuses are read again.
+            ArrayList<Long> changedIds = null;
+            if (previous != null && previous.entities != null && contactUri.equals(previous.uri)) {
+                versionStage = new VersionStage(resolver, contactId);
+                final HashMap<Long, Integer> versions = load.runHere(versionStage);
+                if (versions != null) {
+                    kept = findUnchanged(previous.entities, versions);
+                    changedIds = Lists.newArrayList(versions.keySet());
+                }
+            }
+
+            Future<long[]> name = null;
+            if (kept != null && changedIds.isEmpty() && kept.size() == previous.entities.size()) {
+                result.nameRawContactId = previous.nameRawContactId;
+                result.displayNameSource = previous.displayNameSource;
+            } else {
+                name = load.submit(nameStage);
+                if (name == null) {
+                    return null;
+                }
+                nameReloaded = true;
+            }
+
+            if (kept == null) {
+                entityStage = new EntityStage(resolver, contactId, null);
+                result.entities = load.runHere(entityStage);
+            } else if (changedIds.isEmpty()) {
+                result.entities = new ArrayList<Entity>(kept);
+            } else {
+                entityStage = new EntityStage(resolver, contactId, changedIds);
+                final ArrayList<Entity> changed = load.runHere(entityStage);
+                result.entities = mergeInOrder(previous.entities, kept,
+                        changed != null ? changed : new ArrayList<Entity>());
+            }
+
+            result.statuses = statuses.get();
+            if (name != null) {
+                final long[] nameSource = name.get();
+                if (nameSource != null) {
+                    result.nameRawContactId = nameSource[0];
+                    result.displayNameSource = (int) nameSource[1];
+                }
+            }
+        } catch (CancellationException e) {
+            return null;
+        } catch (InterruptedException e) {
+            return null;
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Failed to load " + contactUri, e.getCause());
+        } finally {
+            load.cancel();
+            synchronized (mRunningLoads) {
+                mRunningLoads.remove(load);
+            }
+        }
+
+        if (Log.isLoggable(TAG, Log.VERBOSE)) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("Loaded ").append(contactUri).append(" in ")
+                    .append(SystemClock.uptimeMillis() - start).append("ms: lookup=")
+                    .append(lookupMillis).append("ms, ").append(statusStage);
+            if (versionStage != null) sb.append(", ").append(versionStage);
+            if (nameReloaded) sb.append(", ").append(nameStage);
+            if (entityStage != null) sb.append(", ").append(entityStage);
+            if (kept != null) {
+                sb.append(", reused ").append(kept.size()).append(" of ")
+                        .append(previous.entities.size()).append(" raw contacts");
+            }
+            Log.v(TAG, sb.toString());
+        }
+        return result;
+    }
+
+    /**
+     * Returns the entities whose raw contact still has the same version,
+     * and leaves in versions only the raw contacts that are new or changed.
+     */
+    private static ArrayList<Entity> findUnchanged(ArrayList<Entity> entities,
+            HashMap<Long, Integer> versions) {
+        ArrayList<Entity> unchanged = Lists.newArrayList();
+        for (Entity entity : entities) {
+            final ContentValues values = entity.getEntityValues();
+            final Long rawContactId = values.getAsLong(RawContacts._ID);
+            final Integer version = values.getAsInteger(RawContacts.VERSION);
+            if (rawContactId != null && version != null
+                    && version.equals(versions.get(rawContactId))) {
+                unchanged.add(entity);
+                versions.remove(rawContactId);
+            }
+        }
+        return unchanged;
+    }
+
+    /**
+     * Returns the entities in the order the previous load had them, so the
+     * detail screen doesn't reorder after every save: kept ones stay where
+     * they were, changed ones take the place of their old version, and new
+     * raw contacts go at the end in query order. Deleted ones are in
+     * neither list.
+     */
+    private static ArrayList<Entity> mergeInOrder(ArrayList<Entity> previous,
+            ArrayList<Entity> kept, ArrayList<Entity> changed) {
+        final HashMap<Long, Entity> changedById = Maps.newHashMap();
+        for (Entity entity : changed) {
+            changedById.put(entity.getEntityValues().getAsLong(RawContacts._ID), entity);
+        }
+        final HashSet<Long> keptIds = new HashSet<Long>();
+        for (Entity entity : kept) {
+            keptIds.add(entity.getEntityValues().getAsLong(RawContacts._ID));
+        }
+        final ArrayList<Entity> merged = Lists.newArrayList();
+        for (Entity entity : previous) {
+            final Long rawContactId = entity.getEntityValues().getAsLong(RawContacts._ID);
+            if (keptIds.contains(rawContactId)) {
+                merged.add(entity);
+            } else {
+                final Entity replacement = changedById.remove(rawContactId);
+                if (replacement != null) {
+                    merged.add(replacement);
+                }
+            }
+        }
+        for (Entity entity : changed) {
+            if (changedById.containsKey(entity.getEntityValues().getAsLong(RawContacts._ID))) {
+                merged.add(entity);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Cancels the queries of the loads in progress, and of one that has
+     * been started but not yet run, whose results will then be null. The
+     * raw contacts query stops at its next row. The next forced load runs
+     * as usual.
+     */
+    public void cancelQueries() {
+        synchronized (mRunningLoads) {
+            mCancelPending = true;
+            for (Load load : mRunningLoads) {
+                load.cancel();
+            }
+        }
+    }
+
+    @Override
+    public void forceLoad() {
+        // Cleared here rather than when the load starts running, so a
+        // cancel that comes in between isn't lost
+        synchronized (mRunningLoads) {
+            mCancelPending = false;
+        }
+        super.forceLoad();
+    }
+
+    /**
+     * The queries of one loadInBackground() call. Each call has its own, so
+     * cancelling or finishing one load leaves any other alone.
+     */
+    private static class Load {
+        /** Pool queries still running; also guards the two fields below. */
+        private final ArrayList<Future<?>> mStages = Lists.newArrayList();
+        private boolean mCancelled;
+        /** The query running on the loader thread, if any. */
+        private Stage<?> mLocalStage;
+
+        Load(boolean cancelled) {
+            mCancelled = cancelled;
+        }
+
+        // Runs stage on the loader thread, where cancel() can still stop it.
+        // Throws CancellationException if the load has been cancelled.
+        <V> V runHere(Stage<V> stage) {
+            synchronized (mStages) {
+                if (mCancelled) {
+                    throw new CancellationException();
+                }
+                mLocalStage = stage;
+            }
+            try {
+                return stage.call();
+            } finally {
+                synchronized (mStages) {
+                    mLocalStage = null;
+                }
+            }
+        }
+
+        // Returns null if the load has been cancelled.
+        <V> Future<V> submit(Stage<V> stage) {
+            synchronized (mStages) {
+                if (mCancelled) {
+                    return null;
+                }
+                final Future<V> future = sStageExecutor.submit(stage);
+                mStages.add(future);
+                return future;
+            }
+        }
+
+        /** Stops this load's queries; also run when it ends, for any it left behind. */
+        void cancel() {
+            synchronized (mStages) {
+                mCancelled = true;
+                for (Future<?> stage : mStages) {
+                    stage.cancel(true);
+                }
+                mStages.clear();
+                if (mLocalStage != null) {
+                    mLocalStage.cancel();
+                }
+            }
+        }
+    }
+
+    /** One query of a load, timed. */
+    private static abstract class Stage<V> implements Callable<V> {
+        private final String mName;
+        private volatile long mElapsedMillis = -1;
+        private volatile boolean mCancelled;
+
+        Stage(String name) {
+            mName = name;
+        }
+
+        public final V call() {
+            final long start = SystemClock.uptimeMillis();
+            try {
+                return load();
+            } finally {
+                mElapsedMillis = SystemClock.uptimeMillis() - start;
+            }
+        }
+
+        abstract V load();
+
+        /** Makes a load() that checks for it give up; the pool interrupts instead. */
+        void cancel() {
+            mCancelled = true;
+        }
+
+        void throwIfCancelled() {
+            if (mCancelled) {
+                throw new CancellationException();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return mName + "=" + (mElapsedMillis < 0 ? "cancelled" : mElapsedMillis + "ms");
+        }
+    }
+
+    /** Reads available social rows. */
+    private static class StatusStage extends Stage<HashMap<Long, DataStatus>> {
+        private final ContentResolver mResolver;
+        private final Uri mDataUri;
+
+        StatusStage(ContentResolver resolver, Uri dataUri) {
+            super("statuses");
+            mResolver = resolver;
+            mDataUri = dataUri;
+        }
 
-        if (cursor != null) {
+        @Override
+        HashMap<Long, DataStatus> load() {
+            Cursor cursor = mResolver.query(mDataUri, StatusQuery.PROJECTION,
+                    StatusUpdates.PRESENCE + " IS NOT NULL OR " + StatusUpdates.STATUS
+                    + " IS NOT NULL", null, null);
+            if (cursor == null) {
+                return null;
+            }
             try {
                 HashMap<Long, DataStatus> statuses = Maps.newHashMap();
-                
+
                 // Walk found statuses, creating internal row for each
                 while (cursor.moveToNext()) {
                     final DataStatus status = new DataStatus(cursor);
                     final long dataId = cursor.getLong(StatusQuery._ID);
                     statuses.put(dataId, status);
                 }
-                result.statuses = statuses;
+                return statuses;
             } finally {
                 cursor.close();
             }
         }
+    }
+
+    /**
+     * Reads out the info about the display name, as
+     * {name raw contact id, display name source}.
+     */
+    private static class NameStage extends Stage<long[]> {
+        private final ContentResolver mResolver;
+        private final Uri mDataUri;
+
+        NameStage(ContentResolver resolver, Uri dataUri) {
+            super("name");
+            mResolver = resolver;
+            mDataUri = dataUri;
+        }
 
-        // Read out the info about the display name
-        cursor = resolver.query(dataUri, new String[] {
-                Contacts.NAME_RAW_CONTACT_ID, Contacts.DISPLAY_NAME_SOURCE
-        }, null, null, null);
-        if (cursor != null) {
+        @Override
+        long[] load() {
+            Cursor cursor = mResolver.query(mDataUri, new String[] {
+                    Contacts.NAME_RAW_CONTACT_ID, Contacts.DISPLAY_NAME_SOURCE
+            }, null, null, null);
+            if (cursor == null) {
+                return null;
+            }
             try {
-                if (cursor.moveToFirst()) {
-                    result.nameRawContactId = cursor.getLong(cursor
-                            .getColumnIndex(Contacts.NAME_RAW_CONTACT_ID));
-                    result.displayNameSource = cursor.getInt(cursor
-                            .getColumnIndex(Contacts.DISPLAY_NAME_SOURCE));
+                if (!cursor.moveToFirst()) {
+                    return null;
                 }
+                return new long[] {
+                        cursor.getLong(cursor.getColumnIndex(Contacts.NAME_RAW_CONTACT_ID)),
+                        cursor.getInt(cursor.getColumnIndex(Contacts.DISPLAY_NAME_SOURCE)),
+                };
             } finally {
                 cursor.close();
             }
         }
+    }
 
-        // Read the constituent raw contacts
-        final long contactId = ContentUris.parseId(contactUri);
-        cursor = resolver.query(RawContactsEntity.CONTENT_URI, null, RawContacts.CONTACT_ID
-                + "=" + contactId, null, null);
-        if (cursor != null) {
+    /** Reads the version of each of the contact's raw contacts, by raw contact id. */
+    private static class VersionStage extends Stage<HashMap<Long, Integer>> {
+        private final ContentResolver mResolver;
+        private final long mContactId;
+
+        VersionStage(ContentResolver resolver, long contactId) {
+            super("versions");
+            mResolver = resolver;
+            mContactId = contactId;
+        }
+
+        @Override
+        HashMap<Long, Integer> load() {
+            Cursor cursor = mResolver.query(RawContacts.CONTENT_URI, new String[] {
+                    RawContacts._ID, RawContacts.VERSION
+            }, RawContacts.CONTACT_ID + "=" + mContactId, null, null);
+            if (cursor == null) {
+                return null;
+            }
+            try {
+                HashMap<Long, Integer> versions = Maps.newHashMap();
+                while (cursor.moveToNext()) {
+                    versions.put(cursor.getLong(0), cursor.getInt(1));
+                }
+                return versions;
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    /** Reads the constituent raw contacts. */
+    private static class EntityStage extends Stage<ArrayList<Entity>> {
+        private final ContentResolver mResolver;
+        private final long mContactId;
+        private final ArrayList<Long> mRawContactIds;
+
+        /** Reads the given raw contacts of the contact, or all of them if null. */
+        EntityStage(ContentResolver resolver, long contactId, ArrayList<Long> rawContactIds) {
+            super("entities");
+            mResolver = resolver;
+            mContactId = contactId;
+            mRawContactIds = rawContactIds;
+        }
+
+        @Override
+        ArrayList<Entity> load() {
+            StringBuilder selection = new StringBuilder();
+            selection.append(RawContacts.CONTACT_ID).append('=').append(mContactId);
+            if (mRawContactIds != null) {
+                selection.append(" AND ").append(RawContactsEntity._ID).append(" IN (");
+                for (int i = 0; i < mRawContactIds.size(); i++) {
+                    if (i > 0) selection.append(',');
+                    selection.append(mRawContactIds.get(i));
+                }
+                selection.append(')');
+            }
+            Cursor cursor = mResolver.query(RawContactsEntity.CONTENT_URI, null,
+                    selection.toString(), null, null);
+            if (cursor == null) {
+                return null;
+            }
             ArrayList<Entity> entities = Lists.newArrayList();
             EntityIterator iterator = RawContacts.newEntityIterator(cursor);
             try {
                 while (iterator.hasNext()) {
+                    throwIfCancelled();
                     Entity entity = iterator.next();
                     entities.add(entity);
                 }
             } finally {
                 iterator.close();
             }
-            result.entities = entities;
+            return entities;
         }
-
-        return result;
     }
 
     @Override
@@ -166,6 +577,7 @@ public class ContactLoader extends AsyncTaskLoader<ContactLoader.ContactData> {
 
     @Override
     public void stopLoading() {
+        cancelQueries();
         mContact = null;
         if (mObserver != null) {
             getContext().getContentResolver().unregisterContentObserver(mObserver);
@@ -174,6 +586,7 @@ public class ContactLoader extends AsyncTaskLoader<ContactLoader.ContactData> {
 
     @Override
     public void destroy() {
+        cancelQueries();
         mContact = null;
         mDestroyed = true;
     }
@@ -41,6 +41,7 @@ public class ContactsListLoader {
 
     public static final int COLUMN_ID = 0;
     public static final int COLUMN_NAME = 1;
+    public static final int COLUMN_PHOTO_ID = 7;
     public static final int COLUMN_LOOKUP_KEY = 8;
 
     public static CursorLoader newVisibleContactsLoader(Context context) {
@@ -37,6 +37,7 @@ import android.util.Log;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 
@@ -70,6 +71,14 @@ public class EntityDelta implements Parcelable {
      */
     private HashMap<String, ArrayList<ValuesDelta>> mEntries = Maps.newHashMap();
 
+    /**
+     * Index of the children in {@link #mEntries} by {@link ValuesDelta#getId()},
+     * so lookups don't scan every bin. An entry's id doesn't change once it's
+     * added, except that deleting an insert drops its temporary id; lookups
+     * check the id of what they find, so such entries simply stop matching.
+     */
+    private HashMap<Long, ValuesDelta> mEntryIndex = Maps.newHashMap();
+
     public EntityDelta() {
     }
 
@@ -236,6 +245,10 @@ public class EntityDelta implements Parcelable {
     public ValuesDelta addEntry(ValuesDelta entry) {
         final String mimeType = entry.getMimetype();
         getMimeEntries(mimeType, true).add(entry);
+        final Long childId = entry.getId();
+        if (childId != null && getEntry(childId) == null) {
+            mEntryIndex.put(childId, entry);
+        }
         return entry;
     }
 
@@ -248,15 +261,8 @@ public class EntityDelta implements Parcelable {
             return null;
         }
 
-        // Search all children for requested entry
-        for (ArrayList<ValuesDelta> mimeEntries : mEntries.values()) {
-            for (ValuesDelta entry : mimeEntries) {
-                if (childId.equals(entry.getId())) {
-                    return entry;
-                }
-            }
-        }
-        return null;
+        final ValuesDelta entry = mEntryIndex.get(childId);
+        return (entry != null && childId.equals(entry.getId())) ? entry : null;
     }
 
     /**
@@ -292,6 +298,13 @@ public class EntityDelta implements Parcelable {
     }
 
     private boolean containsEntry(ValuesDelta entry) {
+        final Long childId = entry.getId();
+        if (childId != null) {
+            // Equal entries have equal ids, so only the indexed one can match
+            final ValuesDelta child = getEntry(childId);
+            return child != null && child.equals(entry);
+        }
+
         for (ArrayList<ValuesDelta> mimeEntries : mEntries.values()) {
             for (ValuesDelta child : mimeEntries) {
                 // Contained if we find any child that matches
@@ -311,6 +324,15 @@ public class EntityDelta implements Parcelable {
                 child.markDeleted();
             }
         }
+
+        // Deleted inserts have lost their temporary ids
+        final Iterator<Map.Entry<Long, ValuesDelta>> it = mEntryIndex.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<Long, ValuesDelta> indexed = it.next();
+            if (!indexed.getKey().equals(indexed.getValue().getId())) {
+                it.remove();
+            }
+        }
     }
 
     @Override
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.loaderapp.model;
+
+import com.android.loaderapp.model.EntityDelta.ValuesDelta;
+
+import android.content.ContentValues;
+import android.content.Entity;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContacts;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.StructuredPostal;
+import android.util.Log;
+
+/**
+ * Times {@link EntityDelta} on synthetic raw contacts with hundreds to
+ * thousands of data rows, the size of a heavily-populated corporate
+ * contact. For each size it reports nanoseconds per data row for:
+ *
+ *   fromBefore   building the delta from an {@link Entity}
+ *   mergeAfter   re-parenting an edited delta (every 10th row updated,
+ *                every 50th deleted, 1% new rows) onto a fresh snapshot
+ *   equals       comparing two deltas of the same entity
+ *
+ * With constant-time child lookups all three stay flat as the row count
+ * grows. Run it with app_process, or call {@link #run()} from a debug build.
+ */
+public class EntityDeltaBenchmark {
+    private static final String TAG = "EntityDeltaBenchmark";
+
+    public static final int[] ROW_COUNTS = {100, 1000, 5000};
+
+    private static final String[] MIMETYPES = {
+        Phone.CONTENT_ITEM_TYPE, Email.CONTENT_ITEM_TYPE, StructuredPostal.CONTENT_ITEM_TYPE,
+    };
+
+    private static final long MIN_NANOS_PER_POINT = 200 * 1000000L;
+    private static final int MIN_REPS = 3;
+
+    public static void main(String[] args) {
+        System.out.print(run());
+    }
+
+    /** Runs every size and returns one line per size. */
+    public static String run() {
+        final StringBuilder report = new StringBuilder();
+        for (int rows : ROW_COUNTS) {
+            final String line = "rows=" + rows + " fromBefore=" + timeFromBefore(rows)
+                    + "ns/row mergeAfter=" + timeMergeAfter(rows) + "ns/row equals="
+                    + timeEquals(rows) + "ns/row";
+            Log.v(TAG, line);
+            report.append(line).append('\n');
+        }
+        return report.toString();
+    }
+
+    private static long timeFromBefore(int rows) {
+        final Entity before = buildEntity(rows);
+        long elapsed = 0;
+        int reps = 0;
+        while (reps < MIN_REPS || elapsed < MIN_NANOS_PER_POINT) {
+            final long start = System.nanoTime();
+            EntityDelta.fromBefore(before);
+            elapsed += System.nanoTime() - start;
+            reps++;
+        }
+        return elapsed / reps / rows;
+    }
+
+    private static long timeMergeAfter(int rows) {
+        final Entity before = buildEntity(rows);
+        long elapsed = 0;
+        int reps = 0;
+        while (reps < MIN_REPS || elapsed < MIN_NANOS_PER_POINT) {
+            // Both sides are modified by the merge, so build them untimed
+            final EntityDelta local = EntityDelta.fromBefore(before);
+            final EntityDelta remote = buildEdits(EntityDelta.fromBefore(before), rows);
+            final long start = System.nanoTime();
+            EntityDelta.mergeAfter(local, remote);
+            elapsed += System.nanoTime() - start;
+            reps++;
+        }
+        return elapsed / reps / rows;
+    }
+
+    private static long timeEquals(int rows) {
+        final Entity before = buildEntity(rows);
+        final EntityDelta first = EntityDelta.fromBefore(before);
+        final EntityDelta second = EntityDelta.fromBefore(before);
+        long elapsed = 0;
+        int reps = 0;
+        while (reps < MIN_REPS || elapsed < MIN_NANOS_PER_POINT) {
+            final long start = System.nanoTime();
+            if (!first.equals(second)) {
+                throw new IllegalStateException("Deltas of the same entity differ");
+            }
+            elapsed += System.nanoTime() - start;
+            reps++;
+        }
+        return elapsed / reps / rows;
+    }
+
+    private static Entity buildEntity(int rows) {
+        final ContentValues contact = new ContentValues();
+        contact.put(RawContacts._ID, 1L);
+        contact.put(RawContacts.VERSION, 1);
+        final Entity entity = new Entity(contact);
+        for (int i = 0; i < rows; i++) {
+            final ContentValues values = new ContentValues();
+            values.put(Data._ID, (long) (i + 1));
+            values.put(Data.RAW_CONTACT_ID, 1L);
+            values.put(Data.MIMETYPE, MIMETYPES[i % MIMETYPES.length]);
+            values.put(Data.DATA1, "value" + i);
+            values.put(Data.DATA2, i % 4);
+            entity.addSubValue(Data.CONTENT_URI, values);
+        }
+        return entity;
+    }
+
+    private static EntityDelta buildEdits(EntityDelta delta, int rows) {
+        for (int i = 0; i < rows; i++) {
+            final ValuesDelta child = delta.getEntry((long) (i + 1));
+            if (i % 50 == 0) {
+                child.markDeleted();
+            } else if (i % 10 == 0) {
+                child.put(Data.DATA1, "edited" + i);
+            }
+        }
+        for (int i = 0; i < rows / 100; i++) {
+            final ContentValues values = new ContentValues();
+            values.put(Data.MIMETYPE, MIMETYPES[i % MIMETYPES.length]);
+            values.put(Data.DATA1, "added" + i);
+            delta.addEntry(ValuesDelta.fromAfter(values));
+        }
+        return delta;
+    }
+}
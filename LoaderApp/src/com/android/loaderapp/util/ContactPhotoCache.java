@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.loaderapp.util;
+
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.CommonDataKinds.Photo;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Process-wide cache of contact photos, keyed by the photo's data row id.
+ * Holds two size-bounded LRU tiers: decoded {@link Bitmap}s, and the
+ * encoded bytes they came from, so a bitmap that was evicted can be
+ * decoded again without another query. Photo ids known to have no photo
+ * are remembered too.
+ * <p>
+ * Loads are deduplicated: while one thread queries or decodes a photo,
+ * other threads asking for the same one wait for its result instead of
+ * doing the work again.
+ * <p>
+ * Entries aren't invalidated when a photo row changes in place, which
+ * keeps its id; callers that see the contact change should call
+ * {@link #invalidate(long)}, and {@link #clear()} when memory runs low.
+ */
+public class ContactPhotoCache {
+    private static final int DEFAULT_BITMAP_BYTES = 2 * 1024 * 1024;
+    private static final int DEFAULT_ENCODED_BYTES = 1024 * 1024;
+
+    /** Stands in for "this photo id has no photo" in the encoded tier. */
+    private static final byte[] NO_PHOTO = new byte[0];
+
+    private static ContactPhotoCache sInstance;
+
+    private final Context mContext;
+    private final LruTier<Bitmap> mBitmaps;
+    private final LruTier<byte[]> mEncoded;
+    private final HashMap<Long, PendingLoad> mPending = new HashMap<Long, PendingLoad>();
+
+    private int mHits;
+    private int mMisses;
+    private int mDecodes;
+
+    /** One load in progress; other threads wait on it. */
+    private static class PendingLoad {
+        final CountDownLatch done = new CountDownLatch(1);
+        Bitmap bitmap;
+    }
+
+    /** A map in access order that evicts its eldest entries past a byte limit. */
+    private static abstract class LruTier<V> {
+        private final LinkedHashMap<Long, V> mMap = new LinkedHashMap<Long, V>(16, 0.75f, true);
+        private final int mMaxBytes;
+        private int mBytes;
+
+        LruTier(int maxBytes) {
+            mMaxBytes = maxBytes;
+        }
+
+        abstract int sizeOf(V value);
+
+        V get(long key) {
+            return mMap.get(key);
+        }
+
+        void put(long key, V value) {
+            V old = mMap.put(key, value);
+            if (old != null) mBytes -= sizeOf(old);
+            mBytes += sizeOf(value);
+            Iterator<Map.Entry<Long, V>> it = mMap.entrySet().iterator();
+            while (mBytes > mMaxBytes && it.hasNext()) {
+                Map.Entry<Long, V> eldest = it.next();
+                if (eldest.getKey() == key) continue;
+                mBytes -= sizeOf(eldest.getValue());
+                it.remove();
+            }
+        }
+
+        void remove(long key) {
+            V old = mMap.remove(key);
+            if (old != null) mBytes -= sizeOf(old);
+        }
+
+        void clear() {
+            mMap.clear();
+            mBytes = 0;
+        }
+    }
+
+    public static synchronized ContactPhotoCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ContactPhotoCache(context.getApplicationContext(),
+                    DEFAULT_BITMAP_BYTES, DEFAULT_ENCODED_BYTES);
+        }
+        return sInstance;
+    }
+
+    public ContactPhotoCache(Context context, int maxBitmapBytes, int maxEncodedBytes) {
+        mContext = context;
+        mBitmaps = new LruTier<Bitmap>(maxBitmapBytes) {
+            @Override
+            int sizeOf(Bitmap value) {
+                return value.getRowBytes() * value.getHeight();
+            }
+        };
+        mEncoded = new LruTier<byte[]>(maxEncodedBytes) {
+            @Override
+            int sizeOf(byte[] value) {
+                return value.length;
+            }
+        };
+    }
+
+    /**
+     * Returns the photo if it can be had without a query: from the bitmap
+     * tier, or decoded from the encoded tier. Returns null if the photo
+     * isn't cached, is known not to exist (see {@link #isKnownMissing}), or
+     * is being loaded by another thread; it never waits for that load.
+     * Decoding can take a while, so on the UI thread use {@link #peek}.
+     */
+    public Bitmap getCached(long photoId, int sampleSize) {
+        return resolve(photoId, sampleSize, null, false);
+    }
+
+    /**
+     * Returns the photo only if it's already decoded at this sample size.
+     * Never queries or decodes, so it's cheap enough for the UI thread.
+     */
+    public synchronized Bitmap peek(long photoId, int sampleSize) {
+        final Bitmap bitmap = mBitmaps.get(bitmapKey(photoId, sampleSize));
+        if (bitmap != null) mHits++;
+        return bitmap;
+    }
+
+    /** Returns true if a previous load found that photoId has no photo. */
+    public synchronized boolean isKnownMissing(long photoId) {
+        return mEncoded.get(photoId) == NO_PHOTO;
+    }
+
+    /**
+     * Returns the photo, querying the contacts provider if it isn't
+     * cached. Blocks, so don't call it from the UI thread. Returns null if
+     * there is no such photo.
+     */
+    public Bitmap load(long photoId, int sampleSize) {
+        return resolve(photoId, sampleSize, null, true);
+    }
+
+    /**
+     * Returns the photo for encoded bytes the caller already has, e.g.
+     * from its own query, decoding them only if that bitmap isn't cached.
+     * A null or empty array records that there's no photo.
+     */
+    public Bitmap decode(long photoId, byte[] encoded, int sampleSize) {
+        if (encoded == null || encoded.length == 0) {
+            putEncoded(photoId, null);
+            return null;
+        }
+        return resolve(photoId, sampleSize, encoded, false);
+    }
+
+    /** Stores encoded photo bytes without decoding them. */
+    public synchronized void putEncoded(long photoId, byte[] encoded) {
+        mEncoded.put(photoId, encoded != null && encoded.length > 0 ? encoded : NO_PHOTO);
+    }
+
+    /** Forgets everything cached for photoId. */
+    public synchronized void invalidate(long photoId) {
+        mEncoded.remove(photoId);
+        // Every power of two bitmapKey() can tell apart.
+        for (int sampleSize = 1; sampleSize <= 0xff; sampleSize <<= 1) {
+            mBitmaps.remove(bitmapKey(photoId, sampleSize));
+        }
+    }
+
+    /** Drops both tiers, e.g. when memory runs low. */
+    public synchronized void clear() {
+        mBitmaps.clear();
+        mEncoded.clear();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ContactPhotoCache[hits=" + mHits + ", misses=" + mMisses
+                + ", decodes=" + mDecodes + ", bitmapBytes=" + mBitmaps.mBytes
+                + ", encodedBytes=" + mEncoded.mBytes + "]";
+    }
+
+    // Looks in both tiers, joins a load of the same bitmap already in
+    // progress, or else loads it here: from supplied, the encoded tier or,
+    // if mayQuery, the provider.
+    private Bitmap resolve(long photoId, int sampleSize, byte[] supplied, boolean mayQuery) {
+        final long key = bitmapKey(photoId, sampleSize);
+        final PendingLoad other;
+        final PendingLoad pending;
+        byte[] encoded = supplied;
+        synchronized (this) {
+            final Bitmap bitmap = mBitmaps.get(key);
+            if (bitmap != null) {
+                mHits++;
+                return bitmap;
+            }
+            other = mPending.get(key);
+            if (other == null) {
+                if (encoded == null) encoded = mEncoded.get(photoId);
+                if (encoded == NO_PHOTO || (encoded == null && !mayQuery)) return null;
+                mMisses++;
+                pending = new PendingLoad();
+                mPending.put(key, pending);
+            } else {
+                pending = null;
+            }
+        }
+        if (other != null) {
+            // Only a caller that could have queried itself waits for it
+            return supplied == null && !mayQuery ? null : await(other);
+        }
+
+        Bitmap bitmap = null;
+        boolean loaded = false;
+        try {
+            if (encoded == null) {
+                encoded = queryPhoto(photoId);
+            }
+            loaded = true;
+            if (encoded != null && encoded.length > 0) {
+                BitmapFactory.Options options = null;
+                if (sampleSize > 1) {
+                    options = new BitmapFactory.Options();
+                    options.inSampleSize = sampleSize;
+                }
+                bitmap = BitmapFactory.decodeByteArray(encoded, 0, encoded.length, options);
+            }
+        } finally {
+            synchronized (this) {
+                // A failed query leaves the tiers as they were.
+                if (loaded) putEncoded(photoId, encoded);
+                if (bitmap != null) {
+                    mDecodes++;
+                    mBitmaps.put(key, bitmap);
+                }
+                mPending.remove(key);
+            }
+            pending.bitmap = bitmap;
+            pending.done.countDown();
+        }
+        return bitmap;
+    }
+
+    private byte[] queryPhoto(long photoId) {
+        final Cursor cursor = mContext.getContentResolver().query(
+                ContentUris.withAppendedId(Data.CONTENT_URI, photoId),
+                new String[] { Photo.PHOTO }, null, null, null);
+        if (cursor == null) return null;
+        try {
+            return cursor.moveToFirst() && !cursor.isNull(0) ? cursor.getBlob(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static Bitmap await(PendingLoad pending) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                pending.done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        return pending.bitmap;
+    }
+
+    // Photo ids are row ids, far below 2^56, which leaves room for the
+    // sample size in the low byte.
+    private static long bitmapKey(long photoId, int sampleSize) {
+        return (photoId << 8) | (Math.max(1, sampleSize) & 0xff);
+    }
+}
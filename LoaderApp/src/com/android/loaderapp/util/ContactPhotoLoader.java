@@ -0,0 +1,461 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.loaderapp.util;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.os.Handler.Callback;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.CommonDataKinds.Photo;
+import android.util.Log;
+import android.view.View;
+import android.widget.TextView;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Asynchronously loads contact photos into list rows. A photo is shown as
+ * the left compound drawable of the row's TextView, with a placeholder
+ * until it arrives.
+ * <p>
+ * Requests made while a list lays out are collected and handed to a
+ * background thread together, which fetches the photos with one
+ * {@code _id IN (...)} query per batch, decodes them with an inSampleSize
+ * close to the target size and stores them in {@link ContactPhotoCache}.
+ * The UI thread then picks them up. A view that's rebound to another
+ * contact or {@link #cancel cancelled} drops its request; the loader
+ * thread re-reads the outstanding requests before every batch, and skips
+ * decoding photos nobody is waiting for any more.
+ * <p>
+ * A photo edited in place keeps its id, so on a requery the loader thread
+ * compares each fetched photo's {@code DATA_VERSION} with what it read and
+ * refetches only the ones that moved.
+ */
+public class ContactPhotoLoader implements Callback {
+    private static final String TAG = "ContactPhotoLoader";
+
+    private static final String LOADER_THREAD_NAME = "ContactPhotoLoader";
+
+    /** Sent to the UI thread to start the loader thread once a layout pass is done. */
+    private static final int MESSAGE_REQUEST_LOADING = 1;
+
+    /** Sent by the loader thread after each batch lands in the cache. */
+    private static final int MESSAGE_PHOTOS_LOADED = 2;
+
+    /** Sent by the loader thread with the ids of photos edited in place. */
+    private static final int MESSAGE_PHOTOS_CHANGED = 3;
+
+    /** Sent to the loader thread to fetch the outstanding requests. */
+    private static final int MESSAGE_LOAD_PHOTOS = 4;
+
+    /** Sent to the loader thread to look for photos that changed. */
+    private static final int MESSAGE_CHECK_VERSIONS = 5;
+
+    /** Photos per query; well below SQLite's limit on bound arguments. */
+    private static final int MAX_BATCH_SIZE = 64;
+
+    private static final String[] COLUMNS = new String[] {
+        Data._ID, Data.DATA_VERSION, Photo.PHOTO,
+    };
+
+    private static final String[] VERSION_COLUMNS = new String[] {
+        Data._ID, Data.DATA_VERSION,
+    };
+
+    private final Context mContext;
+    private final ContactPhotoCache mCache;
+    private final int mDefaultResourceId;
+    private final int mTargetSize;
+
+    /**
+     * The photo each view is waiting for. Rebinding a view replaces its
+     * entry, which is what cancels the request for the previous contact.
+     */
+    private final ConcurrentHashMap<TextView, Long> mPendingRequests =
+            new ConcurrentHashMap<TextView, Long>();
+
+    /** The sample size each photo was decoded at, which its cache key needs. */
+    private final ConcurrentHashMap<Long, Integer> mSampleSizes =
+            new ConcurrentHashMap<Long, Integer>();
+
+    /**
+     * The data version of every photo this loader has queried, or -1 if its
+     * row didn't exist. An edit keeps the photo id but bumps the version.
+     */
+    private final ConcurrentHashMap<Long, Integer> mVersions =
+            new ConcurrentHashMap<Long, Integer>();
+
+    /** The photo each view shows or is waiting for; UI thread only. */
+    private final HashMap<TextView, Long> mShownPhotos = new HashMap<TextView, Long>();
+
+    private final Handler mMainThreadHandler = new Handler(this);
+
+    private LoaderThread mLoaderThread;
+    private boolean mLoadingRequested;
+    private boolean mPaused;
+
+    /**
+     * @param defaultResourceId the placeholder shown until a photo loads, and
+     *        for contacts without one
+     * @param targetSize the width and height photos are shown at, in pixels
+     */
+    public ContactPhotoLoader(Context context, int defaultResourceId, int targetSize) {
+        mContext = context;
+        mCache = ContactPhotoCache.getInstance(context);
+        mDefaultResourceId = defaultResourceId;
+        mTargetSize = targetSize;
+    }
+
+    /**
+     * Shows the photo in view, right away if it's cached and otherwise once
+     * it's loaded. Replaces any earlier request for view.
+     */
+    public void loadPhoto(TextView view, long photoId) {
+        if (photoId == 0) {
+            setPhoto(view, null);
+            mShownPhotos.remove(view);
+            mPendingRequests.remove(view);
+            return;
+        }
+        mShownPhotos.put(view, photoId);
+        if (loadCachedPhoto(view, photoId)) {
+            mPendingRequests.remove(view);
+        } else {
+            setPhoto(view, null);
+            mPendingRequests.put(view, photoId);
+            if (!mPaused) {
+                requestLoading();
+            }
+        }
+    }
+
+    /** Drops the request for view, e.g. when it scrolls off screen. */
+    public void cancel(View view) {
+        mShownPhotos.remove(view);
+        mPendingRequests.remove(view);
+    }
+
+    /** Stops loading, e.g. while a list flings. Requests are kept. */
+    public void pause() {
+        mPaused = true;
+    }
+
+    /** Shows whatever loaded while paused and loads the rest. */
+    public void resume() {
+        mPaused = false;
+        processLoadedPhotos();
+        if (!mPendingRequests.isEmpty()) {
+            requestLoading();
+        }
+    }
+
+    /**
+     * Checks, in the background, whether any photo this loader has fetched
+     * was edited in place, which keeps its id. Those are dropped from the
+     * cache and fetched again, while the views keep showing the old bitmap
+     * until the new one arrives. Call it when the list is requeried.
+     */
+    public void checkForChangedPhotos() {
+        if (mLoaderThread != null && !mVersions.isEmpty()) {
+            mLoaderThread.requestVersionCheck();
+        }
+    }
+
+    /** Drops all requests and stops the loader thread. */
+    public void stop() {
+        pause();
+        mPendingRequests.clear();
+        mShownPhotos.clear();
+        if (mLoaderThread != null) {
+            mLoaderThread.quit();
+            mLoaderThread = null;
+        }
+    }
+
+    public boolean handleMessage(Message msg) {
+        switch (msg.what) {
+            case MESSAGE_REQUEST_LOADING: {
+                mLoadingRequested = false;
+                if (!mPaused) {
+                    if (mLoaderThread == null) {
+                        mLoaderThread = new LoaderThread();
+                        mLoaderThread.start();
+                    }
+                    mLoaderThread.requestLoading();
+                }
+                return true;
+            }
+
+            case MESSAGE_PHOTOS_LOADED: {
+                if (!mPaused) {
+                    processLoadedPhotos();
+                }
+                return true;
+            }
+
+            case MESSAGE_PHOTOS_CHANGED: {
+                @SuppressWarnings("unchecked")
+                HashSet<Long> changed = (HashSet<Long>) msg.obj;
+                for (Map.Entry<TextView, Long> entry : mShownPhotos.entrySet()) {
+                    if (changed.contains(entry.getValue())) {
+                        // No placeholder: the old photo stays up meanwhile
+                        mPendingRequests.put(entry.getKey(), entry.getValue());
+                    }
+                }
+                if (!mPaused && !mPendingRequests.isEmpty()) {
+                    requestLoading();
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Posted rather than run directly, so all the rows bound in one layout
+    // pass end up in the same batch.
+    private void requestLoading() {
+        if (!mLoadingRequested) {
+            mLoadingRequested = true;
+            mMainThreadHandler.sendEmptyMessage(MESSAGE_REQUEST_LOADING);
+        }
+    }
+
+    private void processLoadedPhotos() {
+        for (TextView view : mPendingRequests.keySet()) {
+            Long photoId = mPendingRequests.get(view);
+            if (photoId != null && loadCachedPhoto(view, photoId)) {
+                mPendingRequests.remove(view, photoId);
+            }
+        }
+    }
+
+    // Shows the photo if it's decoded already or known not to exist.
+    private boolean loadCachedPhoto(TextView view, long photoId) {
+        if (mCache.isKnownMissing(photoId)) {
+            setPhoto(view, null);
+            return true;
+        }
+        Integer sampleSize = mSampleSizes.get(photoId);
+        Bitmap bitmap = sampleSize != null ? mCache.peek(photoId, sampleSize) : null;
+        if (bitmap == null) {
+            return false;
+        }
+        setPhoto(view, bitmap);
+        return true;
+    }
+
+    private void setPhoto(TextView view, Bitmap bitmap) {
+        Drawable photo = bitmap != null
+                ? new BitmapDrawable(mContext.getResources(), bitmap)
+                : mContext.getResources().getDrawable(mDefaultResourceId);
+        photo.setBounds(0, 0, mTargetSize, mTargetSize);
+        view.setCompoundDrawables(photo, null, null, null);
+    }
+
+    // Largest power of two that keeps the smaller side at least mTargetSize.
+    private int computeSampleSize(byte[] encoded) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(encoded, 0, encoded.length, options);
+        int size = Math.min(options.outWidth, options.outHeight);
+        int sampleSize = 1;
+        while (mTargetSize > 0 && size / (sampleSize * 2) >= mTargetSize) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    // "_id IN (?,?,...)" with count arguments.
+    private static String buildSelection(int count) {
+        StringBuilder selection = new StringBuilder(Data._ID + " IN (");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) selection.append(',');
+            selection.append('?');
+        }
+        return selection.append(')').toString();
+    }
+
+    private static String[] buildSelectionArgs(List<Long> photoIds) {
+        String[] selectionArgs = new String[photoIds.size()];
+        for (int i = 0; i < selectionArgs.length; i++) {
+            selectionArgs[i] = String.valueOf(photoIds.get(i));
+        }
+        return selectionArgs;
+    }
+
+    private class LoaderThread extends HandlerThread implements Callback {
+        private Handler mLoaderThreadHandler;
+
+        public LoaderThread() {
+            super(LOADER_THREAD_NAME, Process.THREAD_PRIORITY_BACKGROUND);
+        }
+
+        public void requestLoading() {
+            getHandler().sendEmptyMessage(MESSAGE_LOAD_PHOTOS);
+        }
+
+        public void requestVersionCheck() {
+            getHandler().sendEmptyMessage(MESSAGE_CHECK_VERSIONS);
+        }
+
+        private Handler getHandler() {
+            if (mLoaderThreadHandler == null) {
+                mLoaderThreadHandler = new Handler(getLooper(), this);
+            }
+            return mLoaderThreadHandler;
+        }
+
+        // Loads and version checks both run here, one at a time, so a check
+        // can't race a batch that's storing what it read.
+        public boolean handleMessage(Message msg) {
+            switch (msg.what) {
+                case MESSAGE_LOAD_PHOTOS:
+                    loadPhotos();
+                    return true;
+                case MESSAGE_CHECK_VERSIONS:
+                    checkVersions();
+                    return true;
+            }
+            return false;
+        }
+
+        // Drops the photos whose row changed or went away since it was read.
+        private void checkVersions() {
+            HashSet<Long> changed = new HashSet<Long>();
+            ArrayList<Long> photoIds = new ArrayList<Long>(mVersions.keySet());
+            for (int start = 0; start < photoIds.size(); start += MAX_BATCH_SIZE) {
+                List<Long> batch = photoIds.subList(start,
+                        Math.min(start + MAX_BATCH_SIZE, photoIds.size()));
+                Cursor cursor = mContext.getContentResolver().query(Data.CONTENT_URI,
+                        VERSION_COLUMNS, buildSelection(batch.size()),
+                        buildSelectionArgs(batch), null);
+                if (cursor == null) {
+                    Log.w(TAG, "Photo version query failed for " + batch.size() + " photos");
+                    return;
+                }
+                HashMap<Long, Integer> current = new HashMap<Long, Integer>();
+                try {
+                    while (cursor.moveToNext()) {
+                        current.put(cursor.getLong(0), cursor.getInt(1));
+                    }
+                } finally {
+                    cursor.close();
+                }
+                for (Long photoId : batch) {
+                    Integer version = current.get(photoId);
+                    if (!mVersions.get(photoId).equals(version != null ? version : -1)) {
+                        mCache.invalidate(photoId);
+                        mSampleSizes.remove(photoId);
+                        mVersions.remove(photoId);
+                        changed.add(photoId);
+                    }
+                }
+            }
+            if (!changed.isEmpty()) {
+                mMainThreadHandler.obtainMessage(MESSAGE_PHOTOS_CHANGED, changed).sendToTarget();
+            }
+        }
+
+        // Keeps batching until every photo still wanted has been tried once.
+        private void loadPhotos() {
+            HashSet<Long> tried = new HashSet<Long>();
+            ArrayList<Long> batch = new ArrayList<Long>(MAX_BATCH_SIZE);
+            while (true) {
+                batch.clear();
+                boolean loaded = false;
+                for (Long photoId : mPendingRequests.values()) {
+                    if (batch.size() == MAX_BATCH_SIZE) break;
+                    if (!tried.add(photoId)) continue;
+                    if (decodeCachedPhoto(photoId)) {
+                        loaded = true;
+                    } else {
+                        batch.add(photoId);
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    queryPhotos(batch);
+                    loaded = true;
+                }
+                if (!loaded) break;
+                mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
+            }
+        }
+
+        // Decodes from the cache's encoded tier when it has the bytes.
+        private boolean decodeCachedPhoto(long photoId) {
+            Integer sampleSize = mSampleSizes.get(photoId);
+            return mCache.isKnownMissing(photoId)
+                    || (sampleSize != null && mCache.getCached(photoId, sampleSize) != null);
+        }
+
+        private void queryPhotos(ArrayList<Long> batch) {
+            Cursor cursor = mContext.getContentResolver().query(Data.CONTENT_URI, COLUMNS,
+                    buildSelection(batch.size()), buildSelectionArgs(batch), null);
+            if (cursor == null) {
+                Log.w(TAG, "Photo query failed for " + batch.size() + " photos");
+                return;
+            }
+
+            HashSet<Long> found = new HashSet<Long>();
+            try {
+                while (cursor.moveToNext()) {
+                    long photoId = cursor.getLong(0);
+                    byte[] encoded = cursor.isNull(2) ? null : cursor.getBlob(2);
+                    found.add(photoId);
+                    mVersions.put(photoId, cursor.getInt(1));
+                    if (encoded == null) {
+                        mCache.putEncoded(photoId, null);
+                        continue;
+                    }
+                    // decodeCachedPhoto() needs the sample size to find the
+                    // photo again, decoded now or not
+                    int sampleSize = computeSampleSize(encoded);
+                    mSampleSizes.put(photoId, sampleSize);
+                    if (!mPendingRequests.containsValue(photoId)) {
+                        // Nobody is waiting for it any more; keep the bytes
+                        // so it's quick to decode if it comes back.
+                        mCache.putEncoded(photoId, encoded);
+                        continue;
+                    }
+                    mCache.decode(photoId, encoded, sampleSize);
+                }
+            } finally {
+                cursor.close();
+            }
+
+            for (Long photoId : batch) {
+                if (!found.contains(photoId)) {
+                    mVersions.put(photoId, -1);
+                    mCache.putEncoded(photoId, null);
+                }
+            }
+        }
+    }
+}
@@ -34,7 +34,6 @@ import android.provider.ContactsContract.CommonDataKinds.Email;
 import android.provider.ContactsContract.CommonDataKinds.Im;
 import android.provider.ContactsContract.CommonDataKinds.Organization;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
-import android.provider.ContactsContract.CommonDataKinds.Photo;
 import android.provider.ContactsContract.CommonDataKinds.StructuredPostal;
 import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
@@ -157,29 +156,15 @@ public class ContactsUtils {
                 placeholderImageResource, options);
     }
 
+    /**
+     * Loads the photo with the given data id through {@link ContactPhotoCache},
+     * so repeated loads skip the query and, usually, the decode. Only
+     * options.inSampleSize is honored.
+     */
     public static Bitmap loadContactPhoto(Context context, long photoId,
             BitmapFactory.Options options) {
-        Cursor photoCursor = null;
-        Bitmap photoBm = null;
-
-        try {
-            photoCursor = context.getContentResolver().query(
-                    ContentUris.withAppendedId(Data.CONTENT_URI, photoId),
-                    new String[] { Photo.PHOTO },
-                    null, null, null);
-
-            if (photoCursor.moveToFirst() && !photoCursor.isNull(0)) {
-                byte[] photoData = photoCursor.getBlob(0);
-                photoBm = BitmapFactory.decodeByteArray(photoData, 0,
-                        photoData.length, options);
-            }
-        } finally {
-            if (photoCursor != null) {
-                photoCursor.close();
-            }
-        }
-
-        return photoBm;
+        final int sampleSize = options != null ? options.inSampleSize : 1;
+        return ContactPhotoCache.getInstance(context).load(photoId, sampleSize);
     }
 
     // TODO find a proper place for the canonical version of these
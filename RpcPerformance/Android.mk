@@ -17,7 +17,9 @@ LOCAL_PATH:= $(call my-dir)
 include $(CLEAR_VARS)
 LOCAL_MODULE_TAGS := tests   # Allows non-localized strings
 LOCAL_SRC_FILES := $(call all-subdir-java-files)
-LOCAL_SRC_FILES += src/com/android/rpc_performance/IService.aidl
+LOCAL_SRC_FILES += src/com/android/rpc_performance/IService.aidl \
+                   src/com/android/rpc_performance/ICompletionCallback.aidl \
+                   src/com/android/rpc_performance/IProviderPing.aidl
 LOCAL_PACKAGE_NAME := RpcPerformance
 include $(BUILD_PACKAGE)
 
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.rpc_performance;
+
+import android.os.Debug;
+
+/**
+ * Counts the objects and bytes the calling thread allocates between
+ * start() and stop(), using the runtime's per-thread allocation counters,
+ * along with the garbage collections (any thread's) and heap growth over
+ * the same span.  Repeated start()/stop() pairs accumulate.
+ *
+ * Counting objects and bytes slows every allocation down, so do it over
+ * a separate, untimed pass (see ALLOC_PASS_ITERATIONS).  The pass being
+ * timed can still use a counter made with countAllocations false, which
+ * only tracks GCs and heap growth.
+ */
+public class AllocationCounter {
+
+    public static final String BYTES_PER_OP = "bytes_per_op";
+    public static final String OBJECTS_PER_OP = "objects_per_op";
+
+    /** Operations in an untimed allocation-counting pass. */
+    public static final int ALLOC_PASS_ITERATIONS = 50;
+
+    private final boolean mCountAllocations;
+
+    private long mObjects;
+    private long mBytes;
+    private long mGcCount;
+    private long mGcTimeMillis;
+    private long mBlockingGcCount;
+    private long mBlockingGcTimeMillis;
+    private long mHeapGrowth;
+
+    private long mStartGcCount;
+    private long mStartGcTime;
+    private long mStartBlockingGcCount;
+    private long mStartBlockingGcTime;
+    private long mStartHeapUsed;
+
+    public AllocationCounter() {
+        this(true);
+    }
+
+    public AllocationCounter(boolean countAllocations) {
+        mCountAllocations = countAllocations;
+    }
+
+    public void start() {
+        mStartGcCount = runtimeStat("art.gc.gc-count");
+        mStartGcTime = runtimeStat("art.gc.gc-time");
+        mStartBlockingGcCount = runtimeStat("art.gc.blocking-gc-count");
+        mStartBlockingGcTime = runtimeStat("art.gc.blocking-gc-time");
+        mStartHeapUsed = heapUsed();
+        if (mCountAllocations) {
+            Debug.resetThreadAllocCount();
+            Debug.resetThreadAllocSize();
+            Debug.startAllocCounting();
+        }
+    }
+
+    public void stop() {
+        if (mCountAllocations) {
+            Debug.stopAllocCounting();
+            mObjects += Debug.getThreadAllocCount();
+            mBytes += Debug.getThreadAllocSize();
+        }
+        mGcCount += runtimeStat("art.gc.gc-count") - mStartGcCount;
+        mGcTimeMillis += runtimeStat("art.gc.gc-time") - mStartGcTime;
+        mBlockingGcCount += runtimeStat("art.gc.blocking-gc-count") - mStartBlockingGcCount;
+        mBlockingGcTimeMillis += runtimeStat("art.gc.blocking-gc-time") - mStartBlockingGcTime;
+        mHeapGrowth += heapUsed() - mStartHeapUsed;
+    }
+
+    public long getObjects() {
+        return mObjects;
+    }
+
+    public long getBytes() {
+        return mBytes;
+    }
+
+    /** Adds bytes_per_op and objects_per_op for ops operations. */
+    public void putAllocationMetrics(BenchmarkResult result, long ops) {
+        if (ops <= 0 || !mCountAllocations) return;
+        result.putMetric(BYTES_PER_OP, (double) mBytes / ops);
+        result.putMetric(OBJECTS_PER_OP, (double) mObjects / ops);
+    }
+
+    /** Adds the GC count, GC time and heap growth over everything counted. */
+    public void putGcMetrics(BenchmarkResult result) {
+        result.putMetric("gc_count", mGcCount);
+        result.putMetric("gc_time_ms", mGcTimeMillis);
+        result.putMetric("blocking_gc_count", mBlockingGcCount);
+        result.putMetric("blocking_gc_time_ms", mBlockingGcTimeMillis);
+        result.putMetric("heap_growth_kb", mHeapGrowth / 1024.0);
+    }
+
+    private static long heapUsed() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // The runtime reports these as decimal strings; missing means 0.
+    private static long runtimeStat(String name) {
+        String value = Debug.getRuntimeStat(name);
+        if (value == null) return 0;
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.rpc_performance;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares N individual insert() round trips against one bulkInsert() and
+ * one applyBatch() carrying the same N rows, against the cross-process
+ * no-op Provider, for N in {@link #BATCH_SIZES}.
+ *
+ * Each sample is the time for all N rows.  Batched results carry a
+ * "speedup" metric (individual time / batched time); the crossover is the
+ * smallest N where it exceeds 1.
+ */
+public class BatchBenchmark {
+
+    private static final String TAG = "BatchBenchmark";
+
+    public static final int[] BATCH_SIZES = {1, 10, 100, 1000};
+
+    // Keeps the N=1000 individual case from taking minutes.
+    private static final int MAX_ROWS_PER_POINT = 20000;
+    private static final int MIN_REPS = 5;
+
+    private static final int MODE_INDIVIDUAL = 0;
+    private static final int MODE_BULK_INSERT = 1;
+    private static final int MODE_APPLY_BATCH = 2;
+    private static final String[] MODE_NAMES = {"individual", "bulkInsert", "applyBatch"};
+
+    private final BenchmarkLoops mLoops;
+    private final ContentResolver cr;
+    private final Uri mUri = BenchmarkLoops.CROSS_PROC_PROVIDER_URI;
+
+    public BatchBenchmark(BenchmarkLoops loops) {
+        mLoops = loops;
+        cr = loops.getContentResolver();
+    }
+
+    public List<BenchmarkResult> run() {
+        ArrayList<BenchmarkResult> results = new ArrayList<BenchmarkResult>();
+        int crossover = -1;
+        for (int n : BATCH_SIZES) {
+            ContentValues[] rows = new ContentValues[n];
+            ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>(n);
+            for (int i = 0; i < n; i++) {
+                rows[i] = new ContentValues();
+                rows[i].put("name", "row" + i);
+                rows[i].put("value", "value" + i);
+                ops.add(ContentProviderOperation.newInsert(mUri).withValues(rows[i]).build());
+            }
+            int reps = Math.max(MIN_REPS, Math.min(mLoops.getIterations(), MAX_ROWS_PER_POINT / n));
+
+            BenchmarkResult individual = runMode(MODE_INDIVIDUAL, n, reps, rows, ops);
+            results.add(individual);
+            if (individual.isFailure()) break;
+            for (int mode = MODE_BULK_INSERT; mode <= MODE_APPLY_BATCH; mode++) {
+                BenchmarkResult batched = runMode(mode, n, reps, rows, ops);
+                if (!batched.isFailure()) {
+                    double speedup = individual.histogram.getMean() / batched.histogram.getMean();
+                    batched.putMetric("speedup", speedup);
+                    if (speedup > 1.0 && crossover < 0) crossover = n;
+                }
+                results.add(batched);
+            }
+        }
+        Log.v(TAG, "batching first wins at n=" + crossover);
+        return results;
+    }
+
+    private BenchmarkResult runMode(int mode, int n, int reps, ContentValues[] rows,
+                                    ArrayList<ContentProviderOperation> ops) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        String name = "batch/" + MODE_NAMES[mode] + "/n=" + n;
+        AllocationCounter allocs = new AllocationCounter();
+        int allocReps;
+        try {
+            long loopStart = System.nanoTime();
+            for (int i = 0; i < reps && mLoops.withinBudget(loopStart); i++) {
+                long lastTime = System.nanoTime();
+                runOnce(mode, n, rows, ops);
+                histogram.recordValue(System.nanoTime() - lastTime);
+            }
+
+            allocReps = (int) Math.min(histogram.getCount(),
+                    AllocationCounter.ALLOC_PASS_ITERATIONS);
+            allocs.start();
+            try {
+                for (int i = 0; i < allocReps; i++) {
+                    runOnce(mode, n, rows, ops);
+                }
+            } finally {
+                allocs.stop();
+            }
+        } catch (RemoteException e) {
+            Log.e(TAG, "Batch call failed", e);
+            return new BenchmarkResult(name, -999, histogram);
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, "applyBatch failed", e);
+            return new BenchmarkResult(name, -999, histogram);
+        }
+        BenchmarkResult result = new BenchmarkResult(name, histogram.getMeanMillis(), histogram);
+        result.putMetric("per_row_us", histogram.getMean() / n / 1000.0);
+        allocs.putAllocationMetrics(result, allocReps);
+        return result;
+    }
+
+    private void runOnce(int mode, int n, ContentValues[] rows,
+                         ArrayList<ContentProviderOperation> ops)
+            throws RemoteException, OperationApplicationException {
+        switch (mode) {
+            case MODE_INDIVIDUAL:
+                for (int j = 0; j < n; j++) {
+                    cr.insert(mUri, rows[j]);
+                }
+                break;
+            case MODE_BULK_INSERT:
+                cr.bulkInsert(mUri, rows);
+                break;
+            case MODE_APPLY_BATCH:
+                cr.applyBatch(mUri.getAuthority(), ops);
+                break;
+        }
+    }
+}
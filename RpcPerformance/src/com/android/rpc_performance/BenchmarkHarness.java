@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.rpc_performance;
+
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * Runs a BenchmarkLoops loop the way JMH would: several independent
+ * trials, each against freshly started remote processes, each preceded
+ * by a warmup phase whose samples are thrown away.
+ *
+ * Warmup runs in batches and ends as soon as the coefficient of variation
+ * (stddev / mean) of the last few batch means drops below a threshold, so
+ * JIT compilation, class loading and the first acquireProvider are kept
+ * out of the measurement without guessing a fixed warmup count.
+ *
+ * The returned result's average is the median of the trial means; its
+ * histogram holds the measured samples of every trial, and its GC
+ * metrics cover the measured iterations only.  Bytes/op and objects/op
+ * come from an untimed pass after the last trial.
+ */
+public class BenchmarkHarness {
+
+    private static final String TAG = "BenchmarkHarness";
+    private static final long RESTART_TIMEOUT_MILLIS = 10000;
+
+    private final BenchmarkLoops mLoops;
+    private final RemoteServiceController mController;
+
+    private int mTrials = 3;
+    private int mMaxWarmupIterations = 1000;
+    private int mWarmupBatch = 20;
+    private int mSteadyWindow = 5;
+    private double mCvThreshold = 0.05;
+    private int mMeasurementIterations = 100;
+
+    /**
+     * @param controller used to restart the remote processes before each
+     *     trial, or null to run every trial against the current ones
+     */
+    public BenchmarkHarness(BenchmarkLoops loops, RemoteServiceController controller) {
+        mLoops = loops;
+        mController = controller;
+    }
+
+    public void setTrials(int trials) {
+        mTrials = Math.max(1, trials);
+    }
+
+    /** Upper bound on warmup iterations per trial; 0 disables warmup. */
+    public void setMaxWarmupIterations(int iterations) {
+        mMaxWarmupIterations = Math.max(0, iterations);
+    }
+
+    public void setWarmupBatch(int iterations) {
+        mWarmupBatch = Math.max(1, iterations);
+    }
+
+    /** Number of consecutive warmup batches the CV is computed over. */
+    public void setSteadyWindow(int batches) {
+        mSteadyWindow = Math.max(2, batches);
+    }
+
+    /** Warmup ends once the batch means' CV is at or below this, e.g. 0.05. */
+    public void setCvThreshold(double cv) {
+        mCvThreshold = cv;
+    }
+
+    public void setMeasurementIterations(int iterations) {
+        mMeasurementIterations = iterations;
+    }
+
+    public BenchmarkResult run(String name) throws InterruptedException {
+        int savedIterations = mLoops.getIterations();
+        try {
+            return runTrials(name);
+        } finally {
+            mLoops.setIterations(savedIterations);
+        }
+    }
+
+    private BenchmarkResult runTrials(String name) throws InterruptedException {
+        LatencyHistogram combined = new LatencyHistogram();
+        double[] trialMeans = new double[mTrials];
+        int warmupIterations = 0;
+        int steadyTrials = 0;
+        AllocationCounter allocs = new AllocationCounter(false);
+
+        for (int t = 0; t < mTrials; t++) {
+            if (mController != null
+                    && !mController.restartRemoteProcesses(RESTART_TIMEOUT_MILLIS)) {
+                Log.w(TAG, "Remote service did not come back for trial " + t);
+            }
+
+            int warmup = warmUp(name);
+            if (warmup >= 0) {
+                steadyTrials++;
+                warmupIterations += warmup;
+            } else {
+                warmupIterations += -warmup;
+            }
+
+            LatencyHistogram trial = new LatencyHistogram();
+            mLoops.setIterations(mMeasurementIterations);
+            float avgTime;
+            allocs.start();
+            try {
+                avgTime = mLoops.run(name, trial);
+            } finally {
+                allocs.stop();
+            }
+            if (avgTime < 0) {
+                return new BenchmarkResult(name, avgTime, trial);
+            }
+            trialMeans[t] = trial.getMean();
+            combined.add(trial);
+            Log.v(TAG, name + " trial " + t + ": warmup=" + warmup
+                  + " mean_ms=" + trial.getMeanMillis());
+        }
+
+        double[] sorted = trialMeans.clone();
+        Arrays.sort(sorted);
+        double median = (sorted.length % 2 == 1)
+                ? sorted[sorted.length / 2]
+                : (sorted[sorted.length / 2 - 1] + sorted[sorted.length / 2]) / 2.0;
+
+        BenchmarkResult result = new BenchmarkResult(name, (float) (median / 1000000.0), combined);
+        result.putMetric("trials", mTrials);
+        result.putMetric("trial_cv", coefficientOfVariation(trialMeans, trialMeans.length));
+        result.putMetric("warmup_iters", (double) warmupIterations / mTrials);
+        result.putMetric("steady_trials", steadyTrials);
+        allocs.putGcMetrics(result);
+        mLoops.countAllocations(name, result);
+        return result;
+    }
+
+    /**
+     * Runs warmup batches until steady state.  Returns the number of
+     * warmup iterations used, negated if the limit was hit (or the loop
+     * failed) before reaching steady state.
+     */
+    private int warmUp(String name) {
+        if (mMaxWarmupIterations == 0) return 0;
+
+        double[] window = new double[mSteadyWindow];
+        int batches = 0;
+        int iterations = 0;
+        LatencyHistogram batch = new LatencyHistogram();
+        mLoops.setIterations(mWarmupBatch);
+
+        while (iterations < mMaxWarmupIterations) {
+            batch.reset();
+            if (mLoops.run(name, batch) < 0 || batch.getCount() == 0) break;
+            iterations += (int) batch.getCount();
+            window[batches % mSteadyWindow] = batch.getMean();
+            batches++;
+            if (batches >= mSteadyWindow
+                    && coefficientOfVariation(window, mSteadyWindow) <= mCvThreshold) {
+                return iterations;
+            }
+        }
+        return -iterations;
+    }
+
+    static double coefficientOfVariation(double[] values, int n) {
+        if (n == 0) return 0.0;
+        double sum = 0;
+        for (int i = 0; i < n; i++) sum += values[i];
+        double mean = sum / n;
+        if (mean == 0.0) return 0.0;
+        double squares = 0;
+        for (int i = 0; i < n; i++) {
+            double d = values[i] - mean;
+            squares += d * d;
+        }
+        return Math.sqrt(squares / n) / mean;
+    }
+}
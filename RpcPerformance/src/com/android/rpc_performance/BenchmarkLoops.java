@@ -0,0 +1,727 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.rpc_performance;
+
+import android.app.ActivityManager;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.IContentProvider;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+import android.net.Uri;
+import android.os.Binder;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.Process;
+import android.os.RemoteException;
+import android.os.ServiceManager;
+import android.os.StrictMode;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+/**
+ * The benchmark loops themselves, independent of any UI, so they can be
+ * driven both by ProviderPerfActivity's buttons and by PerfInstrumentation.
+ *
+ * Each loop is addressed by a short name (see {@link #NAMES}), records
+ * one sample per iteration into the supplied histogram and returns the
+ * average time in milliseconds, or a negative value on failure.
+ *
+ * Sweeps (see {@link #SWEEPS}) are benchmarks that vary a parameter, such
+ * as thread count or payload size, and return one result per value.
+ */
+public class BenchmarkLoops {
+
+    private static final String TAG = "BenchmarkLoops";
+
+    static final Uri SYSTEM_SETTINGS_URI = Uri.parse("content://settings/system");
+
+    // No-op provider URLs:
+    static final Uri CROSS_PROC_PROVIDER_URI = Uri.parse("content://com.android.rpc_performance/");
+    static final Uri IN_PROC_PROVIDER_URI = Uri.parse("content://com.android.rpc_performance.local/");
+
+    // android:process of the cross-process Provider in the manifest.
+    static final String PROVIDER_PROCESS_SUFFIX = ":rpcperfprovider";
+
+    public static final String FILE_READ = "file_read";
+    public static final String FILE_WRITE = "file_write";
+    public static final String SETTINGS_READ = "settings_read";
+    public static final String SETTINGS_SLEEP = "settings_sleep";
+    public static final String SETTINGS_WRITE = "settings_write";
+    public static final String SETTINGS_WRITE_DUP = "settings_writedup";
+    public static final String NOOP_XPROC_QUERY = "noop_xproc_query";
+    public static final String NOOP_INPROC_QUERY = "noop_inproc_query";
+    public static final String LOCAL_SOCKET = "localsocket";
+    public static final String SERVICE_VOID = "service_void";
+    public static final String SERVICE_STRING = "service_string";
+    public static final String PING_MEDIA = "ping_media";
+    public static final String PING_ACTIVITY = "ping_activity";
+    public static final String PROC_READ = "proc_read";
+    public static final String CALL = "call";
+    public static final String CALL_NONEXISTENT = "call_nonexistent";
+    public static final String PARCEL_OBTAIN = "parcel_obtain";
+    public static final String PARCEL_RECYCLE = "parcel_recycle";
+    public static final String STRICTMODE = "strictmode";
+    public static final String BINDER_STRICTMODE = "binder_strictmode";
+
+    /** Every loop name, in the order they appear on screen. */
+    public static final String[] NAMES = {
+        FILE_READ, FILE_WRITE,
+        SETTINGS_READ, SETTINGS_SLEEP,
+        SETTINGS_WRITE, SETTINGS_WRITE_DUP,
+        NOOP_XPROC_QUERY, NOOP_INPROC_QUERY,
+        LOCAL_SOCKET, PROC_READ,
+        SERVICE_VOID, SERVICE_STRING,
+        PING_MEDIA, PING_ACTIVITY,
+        CALL, CALL_NONEXISTENT,
+        PARCEL_OBTAIN, PARCEL_RECYCLE,
+        STRICTMODE, BINDER_STRICTMODE,
+    };
+
+    public static final String CONTENTION_SERVICE = "contention_service";
+    public static final String CONTENTION_PROVIDER = "contention_provider";
+    public static final String CONTENTION_CALL = "contention_call";
+    public static final String BATCH = "batch";
+    public static final String FRAMED_SOCKET = "framed_socket";
+    public static final String SHARED_MEMORY = "shared_memory";
+    public static final String ONEWAY = "oneway";
+    public static final String BINDER_PAYLOAD = "binder_payload";
+    public static final String CURSOR_WINDOW = "cursor_window";
+    public static final String SETTINGS_CACHE = "settings_cache";
+    public static final String SETTINGS_COALESCE = "settings_coalesce";
+    public static final String PARCEL_SERIALIZE = "parcel_serialize";
+    public static final String STRICTMODE_MATRIX = "strictmode_matrix";
+    public static final String FILE_IO = "file_io";
+    public static final String PROVIDER_MATRIX = "provider_matrix";
+
+    /** Every sweep name, in the order they appear on screen. */
+    public static final String[] SWEEPS = {
+        CONTENTION_SERVICE, CONTENTION_PROVIDER, CONTENTION_CALL,
+        BATCH, FRAMED_SOCKET, SHARED_MEMORY, ONEWAY, BINDER_PAYLOAD,
+        CURSOR_WINDOW, SETTINGS_CACHE, SETTINGS_COALESCE, PARCEL_SERIALIZE,
+        STRICTMODE_MATRIX, FILE_IO, PROVIDER_MATRIX,
+    };
+
+    private final Context mContext;
+    private final ContentResolver cr;
+
+    private volatile IService mServiceStub = null;
+    private int mIterations = 100;
+    private long mTimeBudgetNanos = 0;  // 0 == no limit
+    private String mTraceName = null;
+    private boolean mDetailedResults = false;
+    private ProcSampler mProcSampler = null;
+
+    public BenchmarkLoops(Context context) {
+        mContext = context;
+        cr = context.getContentResolver();
+    }
+
+    public Context getContext() {
+        return mContext;
+    }
+
+    public ContentResolver getContentResolver() {
+        return cr;
+    }
+
+    public void setServiceStub(IService stub) {
+        mServiceStub = stub;
+    }
+
+    public IService getServiceStub() {
+        return mServiceStub;
+    }
+
+    public void setIterations(int iterations) {
+        mIterations = iterations;
+    }
+
+    public int getIterations() {
+        return mIterations;
+    }
+
+    /**
+     * Bounds the wall-clock time of each loop; a loop stops early once the
+     * budget is used up, even if fewer than getIterations() samples have
+     * been taken.  Zero or negative means no limit.
+     */
+    public void setTimeBudgetMillis(long millis) {
+        mTimeBudgetNanos = millis * 1000000L;
+    }
+
+    public void setTraceName(String name) {
+        mTraceName = name;
+    }
+
+    /**
+     * Whether sweeps should also return their intermediate results (e.g.
+     * per-thread distributions), which are too noisy to show on screen
+     * but useful in exported results.
+     */
+    public void setDetailedResults(boolean detailed) {
+        mDetailedResults = detailed;
+    }
+
+    public boolean wantsDetailedResults() {
+        return mDetailedResults;
+    }
+
+    /**
+     * Samples CPU time of this app and the remote processes, binder
+     * transactions and CPU frequency residency around each measure()
+     * call, adding them to its result.  Remote processes that aren't
+     * running yet are left out rather than started.  Null turns sampling
+     * off.
+     */
+    public void setProcSampler(ProcSampler sampler) {
+        mProcSampler = sampler;
+    }
+
+    /** Returns the pid of MiscService's process, or 0 if it's not bound. */
+    public int getServicePid() {
+        IService stub = mServiceStub;
+        if (stub == null) return 0;
+        try {
+            return stub.getPid();
+        } catch (RemoteException e) {
+            Log.w(TAG, "getPid failed: " + e);
+            return 0;
+        }
+    }
+
+    /**
+     * Returns the pid of the cross-process Provider if its process is
+     * already running, or 0.  It's looked up among the running processes
+     * rather than asked, since asking would start (or warm up) the
+     * provider being measured.
+     */
+    public int getProviderPid() {
+        ActivityManager am =
+                (ActivityManager) mContext.getSystemService(Context.ACTIVITY_SERVICE);
+        List<ActivityManager.RunningAppProcessInfo> processes = am.getRunningAppProcesses();
+        if (processes == null) return 0;
+        String processName = mContext.getPackageName() + PROVIDER_PROCESS_SUFFIX;
+        for (ActivityManager.RunningAppProcessInfo process : processes) {
+            if (processName.equals(process.processName)) return process.pid;
+        }
+        return 0;
+    }
+
+    public static boolean isKnownLoop(String name) {
+        for (String n : NAMES) {
+            if (n.equals(name)) return true;
+        }
+        return false;
+    }
+
+    public static boolean isKnownSweep(String name) {
+        for (String n : SWEEPS) {
+            if (n.equals(name)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Runs the named loop, recording into histogram.  Returns the average
+     * time in milliseconds, or a negative value if the loop failed.
+     */
+    public float run(String name, LatencyHistogram histogram) {
+        if (FILE_READ.equals(name)) return fileReadLoop(histogram);
+        if (FILE_WRITE.equals(name)) return fileWriteLoop(histogram);
+        if (SETTINGS_READ.equals(name)) return settingsProviderLoop(MODE_READ, 0, histogram);
+        if (SETTINGS_SLEEP.equals(name)) return settingsProviderLoop(MODE_READ, 100, histogram);
+        if (SETTINGS_WRITE.equals(name)) return settingsProviderLoop(MODE_WRITE, 0, histogram);
+        if (SETTINGS_WRITE_DUP.equals(name)) {
+            return settingsProviderLoop(MODE_WRITE_DUP, 0, histogram);
+        }
+        if (NOOP_XPROC_QUERY.equals(name)) {
+            return noOpProviderLoop(CROSS_PROC_PROVIDER_URI, histogram);
+        }
+        if (NOOP_INPROC_QUERY.equals(name)) {
+            return noOpProviderLoop(IN_PROC_PROVIDER_URI, histogram);
+        }
+        if (LOCAL_SOCKET.equals(name)) return localSocketLoop(histogram);
+        if (SERVICE_VOID.equals(name)) return serviceLoop(null, histogram);
+        if (SERVICE_STRING.equals(name)) return serviceLoop("xyzzy", histogram);
+        if (PING_MEDIA.equals(name)) return pingServiceLoop("media.player", histogram);
+        if (PING_ACTIVITY.equals(name)) return pingServiceLoop("activity", histogram);
+        if (PROC_READ.equals(name)) return procLoop(histogram);
+        if (CALL.equals(name)) return callLoop("ringtone", histogram);
+        if (CALL_NONEXISTENT.equals(name)) return callLoop("XXXXXXXX", histogram);
+        if (PARCEL_OBTAIN.equals(name)) return parcelLoop(true, histogram);
+        if (PARCEL_RECYCLE.equals(name)) return parcelLoop(false, histogram);
+        if (STRICTMODE.equals(name)) return strictModeLoop(true, histogram);
+        if (BINDER_STRICTMODE.equals(name)) return strictModeLoop(false, histogram);
+        throw new IllegalArgumentException("Unknown loop: " + name);
+    }
+
+    /**
+     * Runs the named loop once with GC counting around it, returning its
+     * result with the GC deltas attached, plus the /proc samples if a
+     * ProcSampler is set.  Bytes/op and objects/op come from a second,
+     * untimed pass; see countAllocations().
+     */
+    public BenchmarkResult measure(String name) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        AllocationCounter allocs = new AllocationCounter(false);
+        ProcSampler sampler = mProcSampler;
+        if (sampler != null) {
+            sampler.begin(new int[] { Process.myPid(), getServicePid(), getProviderPid() },
+                          new String[] { "app", "service", "provider" });
+        }
+        float avgTime;
+        allocs.start();
+        try {
+            avgTime = run(name, histogram);
+        } finally {
+            allocs.stop();
+            if (sampler != null) sampler.end();
+        }
+        BenchmarkResult result = new BenchmarkResult(name, avgTime, histogram);
+        if (!result.isFailure()) {
+            allocs.putGcMetrics(result);
+            if (sampler != null) sampler.putMetrics(result, mDetailedResults);
+            countAllocations(name, result);
+        }
+        return result;
+    }
+
+    /**
+     * Runs the named loop again for at most ALLOC_PASS_ITERATIONS, untimed
+     * and with allocation counting on, and adds its bytes/op and
+     * objects/op to result.
+     */
+    public void countAllocations(String name, BenchmarkResult result) {
+        int iterations = mIterations;
+        mIterations = Math.min(iterations, AllocationCounter.ALLOC_PASS_ITERATIONS);
+        LatencyHistogram untimed = new LatencyHistogram();
+        AllocationCounter allocs = new AllocationCounter();
+        allocs.start();
+        try {
+            run(name, untimed);
+        } finally {
+            allocs.stop();
+            mIterations = iterations;
+        }
+        allocs.putAllocationMetrics(result, untimed.getCount());
+    }
+
+    /** Runs the named sweep, returning one result per parameter value. */
+    public List<BenchmarkResult> runSweep(String name) throws InterruptedException {
+        if (CONTENTION_SERVICE.equals(name)) {
+            return new ContentionBenchmark(this, ContentionBenchmark.TARGET_SERVICE).run();
+        }
+        if (CONTENTION_PROVIDER.equals(name)) {
+            return new ContentionBenchmark(this, ContentionBenchmark.TARGET_PROVIDER).run();
+        }
+        if (CONTENTION_CALL.equals(name)) {
+            return new ContentionBenchmark(this, ContentionBenchmark.TARGET_CALL).run();
+        }
+        if (BATCH.equals(name)) return new BatchBenchmark(this).run();
+        if (FRAMED_SOCKET.equals(name)) return new FramedSocketBenchmark(this).run();
+        if (SHARED_MEMORY.equals(name)) return new SharedMemoryBenchmark(this).run();
+        if (ONEWAY.equals(name)) return new OnewayPipelineBenchmark(this).run();
+        if (BINDER_PAYLOAD.equals(name)) return new BinderPayloadBenchmark(this).run();
+        if (CURSOR_WINDOW.equals(name)) return new CursorWindowBenchmark(this).run();
+        if (SETTINGS_CACHE.equals(name)) return new SettingsCacheBenchmark(this).run();
+        if (SETTINGS_COALESCE.equals(name)) return new SettingsCoalesceBenchmark(this).run();
+        if (PARCEL_SERIALIZE.equals(name)) return new ParcelSerializationBenchmark(this).run();
+        if (STRICTMODE_MATRIX.equals(name)) return new StrictModeMatrixBenchmark(this).run();
+        if (FILE_IO.equals(name)) return new FileIoBenchmark(this).run();
+        if (PROVIDER_MATRIX.equals(name)) return new ProviderMatrixBenchmark(this).run();
+        throw new IllegalArgumentException("Unknown sweep: " + name);
+    }
+
+    // Whether iteration i of a loop that started at loopStart should run.
+    boolean keepRunning(int i, long loopStart) {
+        return i < mIterations && withinBudget(loopStart);
+    }
+
+    // Whether a loop that started at loopStart still has time budget left.
+    boolean withinBudget(long loopStart) {
+        return mTimeBudgetNanos <= 0 || System.nanoTime() - loopStart < mTimeBudgetNanos;
+    }
+
+    private float fileReadLoop(LatencyHistogram histogram) {
+        RandomAccessFile raf = null;
+        File filename = mContext.getFileStreamPath("test.dat");
+        try {
+            byte[] buf = new byte[512];
+
+            raf = new RandomAccessFile(filename, "rw");
+            raf.write(buf);
+            raf.close();
+            raf = null;
+
+            // The data's almost certainly cached -- it's not clear what we're testing here
+            raf = new RandomAccessFile(filename, "r");
+            long loopStart = System.nanoTime();
+            for (int i = 0; keepRunning(i, loopStart); i++) {
+                long lastTime = System.nanoTime();
+                raf.seek(0);
+                raf.read(buf);
+                histogram.recordValue(System.nanoTime() - lastTime);
+            }
+
+            return histogram.getMeanMillis();
+        } catch (IOException e) {
+            Log.e(TAG, "File read failed", e);
+            return 0;
+        } finally {
+            try { if (raf != null) raf.close(); } catch (IOException e) {}
+        }
+    }
+
+    private float fileWriteLoop(LatencyHistogram histogram) {
+        RandomAccessFile raf = null;
+        File filename = mContext.getFileStreamPath("test.dat");
+        try {
+            byte[] buf = new byte[512];
+            long loopStart = System.nanoTime();
+            for (int i = 0; keepRunning(i, loopStart); i++) {
+                for (int j = 0; j < buf.length; j++) buf[j] = (byte) (i + j);
+                long lastTime = System.nanoTime();
+                raf = new RandomAccessFile(filename, "rw");
+                raf.write(buf);
+                raf.close();
+                raf = null;
+                histogram.recordValue(System.nanoTime() - lastTime);
+            }
+
+            return histogram.getMeanMillis();
+        } catch (IOException e) {
+            Log.e(TAG, "File read failed", e);
+            return 0;
+        } finally {
+            try { if (raf != null) raf.close(); } catch (IOException e) {}
+        }
+    }
+
+    // Returns average cross-process dummy query time in milliseconds.
+    private float noOpProviderLoop(Uri uri, LatencyHistogram histogram) {
+        int failures = 0;
+        long loopStart = System.nanoTime();
+        for (int i = 0; keepRunning(i, loopStart); i++) {
+            long duration = doNoOpLookup(uri);
+            if (duration < 0) {
+                failures++;
+            } else {
+                histogram.recordValue(duration);
+            }
+        }
+        float averageMillis = histogram.getMeanMillis();
+        Log.v(TAG, "dummy loop: fails=" + failures + "; total=" + histogram.getCount()
+              + "; goodavg ms=" + averageMillis);
+        return averageMillis;
+    }
+
+    // Returns average cross-process dummy query time in milliseconds.
+    private float callLoop(String key, LatencyHistogram histogram) {
+        IContentProvider cp = cr.acquireProvider(SYSTEM_SETTINGS_URI.getAuthority());
+
+        try {
+            long loopStart = System.nanoTime();
+            for (int i = 0; keepRunning(i, loopStart); i++) {
+                long lastTime = System.nanoTime();
+                Bundle b = cp.call("GET_system", key, null);
+                long nowTime = System.nanoTime();
+                histogram.recordValue(nowTime - lastTime);
+            }
+        } catch (RemoteException e) {
+            return -999.0f;
+        }
+        float averageMillis = histogram.getMeanMillis();
+        Log.v(TAG, "call loop: avg_ms=" + averageMillis + "; calls=" + histogram.getCount());
+        return averageMillis;
+    }
+
+    // Returns average time to read a /proc file in milliseconds.
+    private float procLoop(LatencyHistogram histogram) {
+        File f = new File("/proc/self/cmdline");
+        byte[] buf = new byte[100];
+        String value = null;
+        try {
+            long loopStart = System.nanoTime();
+            for (int i = 0; keepRunning(i, loopStart); i++) {
+                long lastTime = System.nanoTime();
+                FileInputStream is = new FileInputStream(f);
+                int readBytes = is.read(buf, 0, 100);
+                is.close();
+                //value = new String(buf, 0, readBytes);
+                long nowTime = System.nanoTime();
+                histogram.recordValue(nowTime - lastTime);
+                lastTime = nowTime;
+            }
+        } catch (IOException e) {
+            return -999.0f;
+        }
+        float averageMillis = histogram.getMeanMillis();
+        Log.v(TAG, "proc loop: total: " + histogram.getCount() + "; avg_ms=" + averageMillis
+              + "; value=" + value);
+        return averageMillis;
+    }
+
+    private static final String[] IGNORED_COLUMN = {"ignored"};
+
+    // Returns nanoseconds.
+    long doNoOpLookup(Uri uri) {
+        Cursor c = null;
+        try {
+            long startTime = System.nanoTime();
+            c = cr.query(uri,
+                         IGNORED_COLUMN,  //new String[]{"ignored"},  // but allocate it for apples-to-apples
+                         "name=?",
+                         IGNORED_COLUMN,  // new String[]{"also_ignored"},  // also for equality in benchmarking
+                         null /* sort order */);
+            if (c == null) {
+                Log.w(TAG, "cursor null");
+                return -1;
+            }
+            String value = c.moveToNext() ? c.getString(0) : null;
+            long duration = System.nanoTime() - startTime;
+            //Log.v(TAG, "got value: " + value + " in " + duration);
+            return duration;
+        } catch (SQLException e) {
+            Log.w(TAG, "sqlite exception: " + e);
+            return -1;
+        } finally {
+            if (c != null) c.close();
+        }
+    }
+
+    // Returns average cross-process dummy query time in milliseconds.
+    private float serviceLoop(String value, LatencyHistogram histogram) {
+        IService stub = mServiceStub;
+        if (stub == null) {
+            Log.v(TAG, "No service stub.");
+            return -999;
+        }
+
+        try {
+            if (mTraceName != null) stub.startTracing(mTraceName + ".service");
+
+            long loopStart = System.nanoTime();
+            for (int i = 0; keepRunning(i, loopStart); i++) {
+                long lastTime = System.nanoTime();
+                if (value == null) {
+                    stub.pingVoid();
+                } else {
+                    value = stub.pingString(value);
+                }
+                histogram.recordValue(System.nanoTime() - lastTime);
+            }
+
+            if (mTraceName != null) stub.stopTracing();
+
+            return histogram.getMeanMillis();
+        } catch (RemoteException e) {
+            Log.e(TAG, "Binder call failed", e);
+            return -999;
+        }
+    }
+
+    // Returns average cross-process binder ping time in milliseconds.
+    private float pingServiceLoop(String service, LatencyHistogram histogram) {
+        IBinder binder = ServiceManager.getService(service);
+        if (binder == null) {
+            Log.e(TAG, "Service missing: " + service);
+            return -1.0f;
+        }
+
+        long loopStart = System.nanoTime();
+        for (int i = 0; keepRunning(i, loopStart); i++) {
+            long lastTime = System.nanoTime();
+            if (!binder.pingBinder()) {
+                Log.e(TAG, "Error pinging service: " + service);
+                return -1.0f;
+            }
+            histogram.recordValue(System.nanoTime() - lastTime);
+        }
+
+        return histogram.getMeanMillis();
+    }
+
+    // Returns average milliseconds.
+    private float localSocketLoop(LatencyHistogram histogram) {
+        LocalSocket socket = null;
+        try {
+            socket = new LocalSocket();
+            Log.v(TAG, "Connecting to socket...");
+            socket.connect(new LocalSocketAddress(MiscService.SOCKET_NAME));
+            Log.v(TAG, "Connected to socket.");
+            InputStream is = socket.getInputStream();
+            OutputStream os = socket.getOutputStream();
+
+            int count = 0;
+            long loopStart = System.nanoTime();
+            for (int i = 0; keepRunning(i, loopStart); i++) {
+                long beforeTime = System.nanoTime();
+                int expectByte = count & 0xff;
+                os.write(expectByte);
+                int gotBackByte = is.read();
+
+                long afterTime = System.nanoTime();
+                histogram.recordValue(afterTime - beforeTime);
+
+                if (gotBackByte != expectByte) {
+                    Log.w(TAG, "Got wrong byte back.  Got: " + gotBackByte
+                          + "; wanted=" + expectByte);
+                    return -999.00f;
+                }
+                count++;
+            }
+            return histogram.getMeanMillis();
+        } catch (IOException e) {
+            Log.v(TAG, "error in localSocketLoop: " + e);
+            return -1.0f;
+        } finally {
+            if (socket != null) {
+                try { socket.close(); } catch (IOException e) {}
+            }
+        }
+    }
+
+    // Returns average operation time in milliseconds.
+    // obtain: true = measure obtain(), false = measure recycle()
+    private float parcelLoop(boolean obtain, LatencyHistogram histogram) {
+        long loopStart = System.nanoTime();
+        for (int i = 0; keepRunning(i, loopStart); i++) {
+            if (obtain) {
+                long lastTime = System.nanoTime();
+                Parcel p = Parcel.obtain();
+                histogram.recordValue(System.nanoTime() - lastTime);
+                p.recycle();
+            } else {
+                Parcel p = Parcel.obtain();
+                long lastTime = System.nanoTime();
+                p.recycle();
+                histogram.recordValue(System.nanoTime() - lastTime);
+            }
+        }
+
+        return histogram.getMeanMillis();
+    }
+
+    private float strictModeLoop(boolean full, LatencyHistogram histogram) {
+        StrictMode.ThreadPolicy oldPolicy = StrictMode.getThreadPolicy();
+        int oldPolicyMask = StrictMode.getThreadPolicyMask();  // hidden API
+        StrictMode.ThreadPolicy policyA =
+                new StrictMode.ThreadPolicy.Builder().detectDiskReads().build();
+        StrictMode.ThreadPolicy policyB =
+                new StrictMode.ThreadPolicy.Builder().detectDiskWrites().build();
+        long loopStart = System.nanoTime();
+        for (int i = 0; keepRunning(i, loopStart); i++) {
+            StrictMode.ThreadPolicy policy = ((i & 1) == 1) ? policyA : policyB;
+            int policyMask = ((i & 1) == 1) ? 1 : 2;
+            if (full) {
+                long lastTime = System.nanoTime();
+                StrictMode.setThreadPolicy(policy);
+                histogram.recordValue(System.nanoTime() - lastTime);
+            } else {
+                long lastTime = System.nanoTime();
+                Binder.setThreadStrictModePolicy(policyMask);
+                histogram.recordValue(System.nanoTime() - lastTime);
+            }
+        }
+        if (full) {
+            StrictMode.setThreadPolicy(oldPolicy);
+        } else {
+            Binder.setThreadStrictModePolicy(oldPolicyMask);
+        }
+        return histogram.getMeanMillis();
+    }
+
+    // Returns average milliseconds.
+    private static final int MODE_READ = 0;
+    private static final int MODE_WRITE = 1;
+    private static final int MODE_WRITE_DUP = 2;
+
+    private float settingsProviderLoop(int mode, long innerSleep, LatencyHistogram histogram) {
+        long loopStart = System.nanoTime();
+        for (int i = 0; keepRunning(i, loopStart); i++) {
+            long duration = mode == MODE_READ ? settingsRead(innerSleep) : settingsWrite(mode);
+            if (duration < 0) {
+                return -999.0f;
+            }
+            histogram.recordValue(duration);
+        }
+        float averageMillis = histogram.getMeanMillis();
+        Log.v(TAG, "settings provider; mode=" + mode + "; total=" + histogram.getCount() +
+              "; goodavg_ms=" + averageMillis);
+        return averageMillis;
+    }
+
+    // Returns nanoseconds taken, or -1 on failure.
+    private long settingsRead(long innerSleep) {
+        Cursor c = null;
+        try {
+            long startTime = System.nanoTime();
+            c = cr.query(SYSTEM_SETTINGS_URI,
+                         new String[]{"value"},
+                         "name=?",
+                         new String[]{"airplane_mode_on"},
+                         null /* sort order */);
+            if (c == null) {
+                Log.w(TAG, "cursor null");
+                return -1;
+            }
+            String value = c.moveToNext() ? c.getString(0) : null;
+            long duration = System.nanoTime() - startTime;
+            if (innerSleep > 0) {
+                try {
+                    Thread.sleep(innerSleep);
+                } catch (InterruptedException e) {}
+            }
+            return duration;
+        } catch (SQLException e) {
+            Log.w(TAG, "sqlite exception: " + e);
+            return -1;
+        } finally {
+            if (c != null) c.close();
+        }
+    }
+
+    // Returns nanoseconds taken, or -1 on failure.
+    private long settingsWrite(int mode) {
+        long startTime = System.nanoTime();
+        // The database will take care of replacing duplicates.
+        try {
+            ContentValues values = new ContentValues();
+            values.put("name", "dummy_for_testing");
+            values.put("value", (mode == MODE_WRITE ? (""+startTime) : "foo"));
+            Uri uri = cr.insert(SYSTEM_SETTINGS_URI, values);
+            Log.v(TAG, "inserted uri: " + uri);
+        } catch (SQLException e) {
+            Log.w(TAG, "sqliteexception during write: " + e);
+            return -1;
+        }
+        long duration = System.nanoTime() - startTime;
+        return duration;
+    }
+}
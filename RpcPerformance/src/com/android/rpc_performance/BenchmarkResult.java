@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.rpc_performance;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The outcome of running one named loop: its average (or failure code,
+ * if negative), the full latency distribution behind it, and any extra
+ * named metrics the runner attached.
+ */
+public class BenchmarkResult {
+
+    public static final String CSV_HEADER =
+            "name,count,avg_ms,p50_ms,p90_ms,p99_ms,p999_ms,max_ms,stddev_ms,metrics";
+
+    public final String name;
+    public final float avgMillis;
+    public final LatencyHistogram histogram;
+
+    private final LinkedHashMap<String, Double> mMetrics = new LinkedHashMap<String, Double>();
+
+    public BenchmarkResult(String name, float avgMillis, LatencyHistogram histogram) {
+        this.name = name;
+        this.avgMillis = avgMillis;
+        this.histogram = histogram;
+    }
+
+    public boolean isFailure() {
+        return avgMillis < 0;
+    }
+
+    public void putMetric(String key, double value) {
+        mMetrics.put(key, value);
+    }
+
+    public Map<String, Double> getMetrics() {
+        return mMetrics;
+    }
+
+    public JSONObject toJson() throws JSONException {
+        JSONObject o = new JSONObject();
+        o.put("name", name);
+        o.put("count", histogram.getCount());
+        o.put("avg_ms", (double) avgMillis);
+        if (!isFailure()) {
+            o.put("p50_ms", millis(histogram.getValueAtPercentile(50.0)));
+            o.put("p90_ms", millis(histogram.getValueAtPercentile(90.0)));
+            o.put("p99_ms", millis(histogram.getValueAtPercentile(99.0)));
+            o.put("p999_ms", millis(histogram.getValueAtPercentile(99.9)));
+            o.put("max_ms", millis(histogram.getMax()));
+            o.put("stddev_ms", histogram.getStdDev() / 1000000.0);
+        }
+        if (!mMetrics.isEmpty()) {
+            JSONObject metrics = new JSONObject();
+            for (Map.Entry<String, Double> e : mMetrics.entrySet()) {
+                metrics.put(e.getKey(), e.getValue().doubleValue());
+            }
+            o.put("metrics", metrics);
+        }
+        return o;
+    }
+
+    public String toCsvRow() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(name).append(',');
+        sb.append(histogram.getCount()).append(',');
+        sb.append(avgMillis).append(',');
+        sb.append(millis(histogram.getValueAtPercentile(50.0))).append(',');
+        sb.append(millis(histogram.getValueAtPercentile(90.0))).append(',');
+        sb.append(millis(histogram.getValueAtPercentile(99.0))).append(',');
+        sb.append(millis(histogram.getValueAtPercentile(99.9))).append(',');
+        sb.append(millis(histogram.getMax())).append(',');
+        sb.append(histogram.getStdDev() / 1000000.0).append(',');
+        sb.append(metricsString(";"));
+        return sb.toString();
+    }
+
+    @Override public String toString() {
+        if (isFailure()) return name + ": failed (" + avgMillis + ")";
+        return name + ": " + avgMillis + " ms avg; "
+                + histogram.toSummaryString().replace('\n', ' ')
+                + (mMetrics.isEmpty() ? "" : "; " + metricsString(" "));
+    }
+
+    /** One-line form for on-screen sweep tables: parameter, average, p99, metrics. */
+    public String toShortString() {
+        String label = name.substring(name.indexOf('/') + 1);
+        if (isFailure()) return label + ": failed (" + avgMillis + ")";
+        return label + ": " + avgMillis + " ms, p99 "
+                + (float) millis(histogram.getValueAtPercentile(99.0))
+                + (mMetrics.isEmpty() ? "" : "; " + metricsString(" "));
+    }
+
+    /** Formats the extra metrics as "key=value" pairs joined by separator. */
+    public String metricsString(String separator) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Double> e : mMetrics.entrySet()) {
+            if (sb.length() > 0) sb.append(separator);
+            sb.append(e.getKey()).append('=').append(e.getValue().floatValue());
+        }
+        return sb.toString();
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1000000.0;
+    }
+}
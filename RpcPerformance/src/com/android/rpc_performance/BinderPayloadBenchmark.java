@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.rpc_performance;
+
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sends a byte[] of increasing size to MiscService with
+ * IService.pingBytes(), from empty up to just under the 1 MB binder
+ * transaction buffer, to show where copying the payload starts to
+ * dominate the call.
+ *
+ * Each sample is one call.  Results carry MB/s of payload sent and, from
+ * a separate untimed pass, the bytes and objects the calling thread
+ * allocated per call.
+ */
+public class BinderPayloadBenchmark {
+
+    private static final String TAG = "BinderPayloadBenchmark";
+
+    // The binder buffer is 1 MB less two pages, shared by every
+    // transaction in flight to the process, so leave some headroom.
+    public static final int MAX_PAYLOAD = (1 << 20) - 16 * 1024;
+
+    public static final int[] PAYLOAD_SIZES = {
+        0, 64, 1024, 4 * 1024, 16 * 1024, 64 * 1024, 256 * 1024, 512 * 1024, MAX_PAYLOAD,
+    };
+
+    private static final long MAX_BYTES_PER_POINT = 64L << 20;
+    private static final int MIN_REPS = 5;
+
+    private final BenchmarkLoops mLoops;
+
+    public BinderPayloadBenchmark(BenchmarkLoops loops) {
+        mLoops = loops;
+    }
+
+    public List<BenchmarkResult> run() {
+        ArrayList<BenchmarkResult> results = new ArrayList<BenchmarkResult>();
+        IService stub = mLoops.getServiceStub();
+        if (stub == null) {
+            Log.v(TAG, "No service stub.");
+            results.add(new BenchmarkResult("binder_payload", -999, new LatencyHistogram()));
+            return results;
+        }
+        for (int size : PAYLOAD_SIZES) {
+            BenchmarkResult result = runSize(stub, size);
+            results.add(result);
+            if (result.isFailure()) break;
+        }
+        return results;
+    }
+
+    private BenchmarkResult runSize(IService stub, int size) {
+        String name = "binder_payload/bytes=" + size;
+        LatencyHistogram histogram = new LatencyHistogram();
+        byte[] payload = new byte[size];
+        for (int i = 0; i < size; i++) {
+            payload[i] = (byte) i;
+        }
+        int reps = (int) Math.max(MIN_REPS,
+                Math.min(mLoops.getIterations(), MAX_BYTES_PER_POINT / Math.max(size, 1)));
+
+        AllocationCounter gcs = new AllocationCounter(false);
+        AllocationCounter allocs = new AllocationCounter();
+        int allocReps = Math.min(reps, AllocationCounter.ALLOC_PASS_ITERATIONS);
+        try {
+            long loopStart = System.nanoTime();
+            gcs.start();
+            try {
+                for (int i = 0; i < reps && mLoops.withinBudget(loopStart); i++) {
+                    long lastTime = System.nanoTime();
+                    int got = stub.pingBytes(payload);
+                    histogram.recordValue(System.nanoTime() - lastTime);
+                    if (got != size) {
+                        Log.w(TAG, "Service saw wrong length.  Got: " + got
+                              + "; wanted=" + size);
+                        return new BenchmarkResult(name, -999, histogram);
+                    }
+                }
+            } finally {
+                gcs.stop();
+            }
+
+            allocs.start();
+            try {
+                for (int i = 0; i < allocReps; i++) {
+                    stub.pingBytes(payload);
+                }
+            } finally {
+                allocs.stop();
+            }
+        } catch (RemoteException e) {
+            Log.e(TAG, "pingBytes(" + size + ") failed", e);
+            return new BenchmarkResult(name, -999, histogram);
+        }
+
+        BenchmarkResult result = new BenchmarkResult(name, histogram.getMeanMillis(), histogram);
+        double seconds = histogram.getMean() / 1000000000.0;
+        result.putMetric("MB_per_sec", seconds > 0 ? size / seconds / (1 << 20) : 0);
+        gcs.putGcMetrics(result);
+        allocs.putAllocationMetrics(result, allocReps);
+        return result;
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.rpc_performance;
+
+import android.content.IContentProvider;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives the same binder or provider call from N client threads at once,
+ * to expose saturation of the server's binder thread pool.  All client
+ * threads are released together through a barrier; each records into its
+ * own histogram.
+ *
+ * For each thread count the aggregate result carries the combined
+ * distribution plus throughput (calls/sec over the wall-clock time from
+ * release to the last thread finishing) and the spread of the per-thread
+ * p99s.  The per-thread distributions themselves are included when the
+ * loops ask for detailed results.  There are no allocation counts: the
+ * runtime only counts the calling thread, and the calls run on the
+ * client threads.
+ */
+public class ContentionBenchmark {
+
+    private static final String TAG = "ContentionBenchmark";
+
+    public static final int TARGET_SERVICE = 0;   // IService.pingVoid()
+    public static final int TARGET_PROVIDER = 1;  // no-op cross-process query()
+    public static final int TARGET_CALL = 2;      // settings provider call()
+
+    private static final String[] TARGET_NAMES = {"service", "provider", "call"};
+
+    public static final int[] THREAD_COUNTS = {1, 2, 4, 8, 16, 32};
+
+    private final BenchmarkLoops mLoops;
+    private final int mTarget;
+
+    public ContentionBenchmark(BenchmarkLoops loops, int target) {
+        mLoops = loops;
+        mTarget = target;
+    }
+
+    public List<BenchmarkResult> run() throws InterruptedException {
+        ArrayList<BenchmarkResult> results = new ArrayList<BenchmarkResult>();
+        IContentProvider cp = null;
+        if (mTarget == TARGET_CALL) {
+            cp = mLoops.getContentResolver().acquireProvider(
+                    BenchmarkLoops.SYSTEM_SETTINGS_URI.getAuthority());
+            if (cp == null) {
+                Log.v(TAG, "No settings provider.");
+                results.add(new BenchmarkResult("contention_" + TARGET_NAMES[mTarget], -999,
+                        new LatencyHistogram()));
+                return results;
+            }
+        }
+        try {
+            for (int threads : THREAD_COUNTS) {
+                if (runThreads(threads, cp, results).isFailure()) break;
+            }
+        } finally {
+            if (cp != null) mLoops.getContentResolver().releaseProvider(cp);
+        }
+        return results;
+    }
+
+    // Runs one thread count, appending its results; returns the aggregate.
+    private BenchmarkResult runThreads(int threadCount, final IContentProvider cp,
+                                       List<BenchmarkResult> results)
+            throws InterruptedException {
+        final String name = "contention_" + TARGET_NAMES[mTarget] + "/threads=" + threadCount;
+        final IService stub = mLoops.getServiceStub();
+        if (mTarget == TARGET_SERVICE && stub == null) {
+            Log.v(TAG, "No service stub.");
+            BenchmarkResult failed = new BenchmarkResult(name, -999, new LatencyHistogram());
+            results.add(failed);
+            return failed;
+        }
+
+        final CyclicBarrier startBarrier = new CyclicBarrier(threadCount + 1);
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        final AtomicInteger failures = new AtomicInteger();
+        final LatencyHistogram[] histograms = new LatencyHistogram[threadCount];
+
+        for (int t = 0; t < threadCount; t++) {
+            final LatencyHistogram histogram = new LatencyHistogram();
+            histograms[t] = histogram;
+            new Thread("contention-" + t) {
+                @Override public void run() {
+                    try {
+                        startBarrier.await();
+                        long loopStart = System.nanoTime();
+                        for (int i = 0; mLoops.keepRunning(i, loopStart); i++) {
+                            long duration = callOnce(stub, cp);
+                            if (duration < 0) {
+                                failures.incrementAndGet();
+                            } else {
+                                histogram.recordValue(duration);
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        failures.incrementAndGet();
+                    } catch (BrokenBarrierException e) {
+                        failures.incrementAndGet();
+                    } catch (RemoteException e) {
+                        Log.e(TAG, "Binder call failed", e);
+                        failures.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        try {
+            startBarrier.await();
+        } catch (BrokenBarrierException e) {
+            throw new InterruptedException("start barrier broken");
+        }
+        long startTime = System.nanoTime();
+        done.await();
+        long wallNanos = System.nanoTime() - startTime;
+
+        LatencyHistogram combined = new LatencyHistogram();
+        long minP99 = Long.MAX_VALUE;
+        long maxP99 = 0;
+        for (LatencyHistogram h : histograms) {
+            combined.add(h);
+            long p99 = h.getValueAtPercentile(99.0);
+            if (p99 < minP99) minP99 = p99;
+            if (p99 > maxP99) maxP99 = p99;
+        }
+
+        float avgTime = combined.getCount() == 0 ? -999 : combined.getMeanMillis();
+        BenchmarkResult result = new BenchmarkResult(name, avgTime, combined);
+        result.putMetric("threads", threadCount);
+        result.putMetric("calls_per_sec",
+                wallNanos > 0 ? combined.getCount() * 1000000000.0 / wallNanos : 0);
+        result.putMetric("thread_p99_min_ms", minP99 / 1000000.0);
+        result.putMetric("thread_p99_max_ms", maxP99 / 1000000.0);
+        result.putMetric("failures", failures.get());
+        results.add(result);
+
+        if (mLoops.wantsDetailedResults()) {
+            for (int t = 0; t < threadCount; t++) {
+                results.add(new BenchmarkResult(name + "/t" + t,
+                        histograms[t].getMeanMillis(), histograms[t]));
+            }
+        }
+        Log.v(TAG, result.toString());
+        return result;
+    }
+
+    // Returns nanoseconds taken, or -1 on failure.
+    private long callOnce(IService stub, IContentProvider cp) throws RemoteException {
+        switch (mTarget) {
+            case TARGET_SERVICE: {
+                long startTime = System.nanoTime();
+                stub.pingVoid();
+                return System.nanoTime() - startTime;
+            }
+            case TARGET_PROVIDER:
+                return mLoops.doNoOpLookup(BenchmarkLoops.CROSS_PROC_PROVIDER_URI);
+            case TARGET_CALL: {
+                long startTime = System.nanoTime();
+                cp.call("GET_system", "ringtone", null);
+                return System.nanoTime() - startTime;
+            }
+        }
+        return -1;
+    }
+}
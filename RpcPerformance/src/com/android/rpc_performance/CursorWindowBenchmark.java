@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.rpc_performance;
+
+import android.content.ContentResolver;
+import android.database.AbstractWindowedCursor;
+import android.database.Cursor;
+import android.database.CursorWindow;
+import android.database.CursorWrapper;
+import android.net.Uri;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Queries the cross-process no-op Provider for {@link SyntheticCursor}s of
+ * increasing size and reads every cell, to show the cost of filling
+ * CursorWindows in the provider and shipping them to the client.
+ *
+ * Each sample is query() through the end of the scan.  Results also carry
+ * the mean time to the first row (the first window's worth of work), and
+ * how many windows the client went through.
+ */
+public class CursorWindowBenchmark {
+
+    private static final String TAG = "CursorWindowBenchmark";
+
+    public static final int[] ROW_COUNTS = {1, 10, 100, 1000, 10000};
+    public static final int[] COLUMN_COUNTS = {4, 16};
+    public static final int[] BLOB_SIZES = {0, 1024, 16 * 1024};
+
+    // Shapes bigger than this are skipped rather than run for minutes.
+    private static final long MAX_BYTES_PER_QUERY = 32L << 20;
+    private static final int MAX_ROWS_PER_POINT = 100000;
+    private static final int MIN_REPS = 3;
+
+    private final BenchmarkLoops mLoops;
+    private final ContentResolver cr;
+
+    public CursorWindowBenchmark(BenchmarkLoops loops) {
+        mLoops = loops;
+        cr = loops.getContentResolver();
+    }
+
+    public List<BenchmarkResult> run() {
+        ArrayList<BenchmarkResult> results = new ArrayList<BenchmarkResult>();
+        for (int cols : COLUMN_COUNTS) {
+            for (int blob : BLOB_SIZES) {
+                for (int rows : ROW_COUNTS) {
+                    if ((long) rows * (cols - 1) * blob > MAX_BYTES_PER_QUERY) break;
+                    BenchmarkResult result = runShape(rows, cols, blob);
+                    results.add(result);
+                    if (result.isFailure()) return results;
+                }
+            }
+        }
+        return results;
+    }
+
+    private BenchmarkResult runShape(int rows, int cols, int blob) {
+        String name = "cursor/rows=" + rows + ",cols=" + cols + ",blob=" + blob;
+        Uri uri = SyntheticCursor.buildUri(BenchmarkLoops.CROSS_PROC_PROVIDER_URI,
+                rows, cols, blob);
+        LatencyHistogram histogram = new LatencyHistogram();
+        LatencyHistogram firstRow = new LatencyHistogram();
+        long windows = 0;
+        int reps = Math.max(MIN_REPS, Math.min(mLoops.getIterations(), MAX_ROWS_PER_POINT / rows));
+
+        long loopStart = System.nanoTime();
+        for (int i = 0; i < reps && mLoops.withinBudget(loopStart); i++) {
+            long startTime = System.nanoTime();
+            Cursor c = cr.query(uri, null, null, null, null);
+            if (c == null) {
+                Log.w(TAG, "null cursor for " + uri);
+                return new BenchmarkResult(name, -999, histogram);
+            }
+            try {
+                if (!c.moveToFirst()) {
+                    return new BenchmarkResult(name, -999, histogram);
+                }
+                readRow(c, cols);
+                firstRow.recordValue(System.nanoTime() - startTime);
+
+                AbstractWindowedCursor windowed = unwrap(c);
+                CursorWindow window = windowed != null ? windowed.getWindow() : null;
+                int seen = 1;
+                while (c.moveToNext()) {
+                    readRow(c, cols);
+                    if (windowed != null && windowed.getWindow() != window) {
+                        window = windowed.getWindow();
+                        seen++;
+                    }
+                }
+                histogram.recordValue(System.nanoTime() - startTime);
+                windows += seen;
+                if (c.getCount() != rows) {
+                    Log.w(TAG, "Got wrong row count.  Got: " + c.getCount() + "; wanted=" + rows);
+                    return new BenchmarkResult(name, -999, histogram);
+                }
+            } finally {
+                c.close();
+            }
+        }
+
+        AllocationCounter allocs = new AllocationCounter();
+        int allocReps = (int) Math.min(histogram.getCount(),
+                AllocationCounter.ALLOC_PASS_ITERATIONS);
+        allocs.start();
+        try {
+            for (int i = 0; i < allocReps; i++) {
+                Cursor c = cr.query(uri, null, null, null, null);
+                if (c == null) {
+                    Log.w(TAG, "null cursor for " + uri);
+                    return new BenchmarkResult(name, -999, histogram);
+                }
+                try {
+                    while (c.moveToNext()) {
+                        readRow(c, cols);
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+        } finally {
+            allocs.stop();
+        }
+
+        BenchmarkResult result = new BenchmarkResult(name, histogram.getMeanMillis(), histogram);
+        result.putMetric("first_row_ms", firstRow.getMeanMillis());
+        result.putMetric("per_row_us", histogram.getMean() / rows / 1000.0);
+        if (histogram.getCount() > 0) {
+            result.putMetric("windows", (double) windows / histogram.getCount());
+        }
+        allocs.putAllocationMetrics(result, allocReps);
+        return result;
+    }
+
+    private static void readRow(Cursor c, int cols) {
+        for (int col = 0; col < cols; col++) {
+            switch (c.getType(col)) {
+                case Cursor.FIELD_TYPE_BLOB:
+                    c.getBlob(col);
+                    break;
+                case Cursor.FIELD_TYPE_STRING:
+                    c.getString(col);
+                    break;
+                default:
+                    c.getLong(col);
+                    break;
+            }
+        }
+    }
+
+    // The client side of a cross-process query is a windowed cursor inside
+    // ContentResolver's wrapper; returns null if it isn't.
+    private static AbstractWindowedCursor unwrap(Cursor c) {
+        while (c instanceof CursorWrapper) {
+            c = ((CursorWrapper) c).getWrappedCursor();
+        }
+        return c instanceof AbstractWindowedCursor ? (AbstractWindowedCursor) c : null;
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.rpc_performance;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.NioUtils;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Reads and writes a 64 MB file in internal storage one block at a
+ * time, for block sizes from 4 KB to 4 MB, in sequential and random
+ * (block-aligned) order:
+ *
+ *   read  raf             RandomAccessFile.read(byte[]), like fileReadLoop
+ *   read  heap / direct   FileChannel.read() into a heap / direct ByteBuffer
+ *   read  mmap            get() from a MappedByteBuffer of the whole file
+ *   write heap / direct   FileChannel.write() with no sync
+ *   write direct + sync   then fdatasync at the end, fdatasync after
+ *                         every block, or fsync after every block
+ *
+ * The file is dropped from the page cache (fsync, then
+ * POSIX_FADV_DONTNEED) before each point, so reads start cold; a point
+ * reads at most the file's size, but random order may hit a block
+ * twice.  Each sample is one block; the "end" sync is timed as part of
+ * the last sample.  Results carry MB/s.
+ */
+public class FileIoBenchmark {
+
+    private static final String TAG = "FileIoBenchmark";
+
+    public static final int FILE_SIZE = 64 << 20;
+
+    public static final int[] BLOCK_SIZES = {
+        4 * 1024, 16 * 1024, 64 * 1024, 256 * 1024, 1 << 20, 4 << 20,
+    };
+
+    public static final String[] READ_METHODS = {"raf", "heap", "direct", "mmap"};
+
+    // Write method and sync policy pairs.
+    public static final String[][] WRITE_METHODS = {
+        {"heap", "none"}, {"direct", "none"}, {"direct", "fdatasync_end"},
+        {"direct", "fdatasync_each"}, {"direct", "fsync_each"},
+    };
+
+    private static final int MIN_REPS = 4;
+
+    private final BenchmarkLoops mLoops;
+    private final File mFile;
+
+    public FileIoBenchmark(BenchmarkLoops loops) {
+        mLoops = loops;
+        mFile = loops.getContext().getFileStreamPath("file_io.dat");
+    }
+
+    public List<BenchmarkResult> run() {
+        ArrayList<BenchmarkResult> results = new ArrayList<BenchmarkResult>();
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(mFile, "rw");
+            fill(raf);
+            FileChannel channel = raf.getChannel();
+            for (int block : BLOCK_SIZES) {
+                for (int random = 0; random < 2; random++) {
+                    for (String method : READ_METHODS) {
+                        results.add(runRead(raf, channel, method, block, random == 1));
+                    }
+                    for (String[] method : WRITE_METHODS) {
+                        results.add(runWrite(raf, channel, method[0], method[1], block,
+                                random == 1));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "File I/O failed", e);
+            results.add(new BenchmarkResult("file_io", -999, new LatencyHistogram()));
+        } catch (ErrnoException e) {
+            Log.e(TAG, "File I/O failed", e);
+            results.add(new BenchmarkResult("file_io", -999, new LatencyHistogram()));
+        } finally {
+            if (raf != null) {
+                try { raf.close(); } catch (IOException e) {}
+            }
+            mFile.delete();
+        }
+        return results;
+    }
+
+    private BenchmarkResult runRead(RandomAccessFile raf, FileChannel channel, String method,
+                                    int block, boolean random)
+            throws IOException, ErrnoException {
+        String name = "file_io/read/" + method + "/" + (random ? "random" : "seq")
+                + "/block=" + block;
+        LatencyHistogram histogram = new LatencyHistogram();
+        byte[] array = new byte[block];
+        ByteBuffer buffer = "direct".equals(method)
+                ? ByteBuffer.allocateDirect(block) : ByteBuffer.wrap(array);
+        MappedByteBuffer map = "mmap".equals(method)
+                ? channel.map(FileChannel.MapMode.READ_ONLY, 0, FILE_SIZE) : null;
+        try {
+            int blocks = FILE_SIZE / block;
+            int reps = Math.max(MIN_REPS, Math.min(mLoops.getIterations(), blocks));
+            Random offsets = new Random(block);
+            dropCache(raf);
+
+            long loopStart = System.nanoTime();
+            for (int i = 0; i < reps && mLoops.withinBudget(loopStart); i++) {
+                long offset = (long) (random ? offsets.nextInt(blocks) : i % blocks) * block;
+                long lastTime = System.nanoTime();
+                if (!readBlock(raf, channel, method, map, buffer, array, offset)) {
+                    Log.w(TAG, name + ": unexpected EOF");
+                    return new BenchmarkResult(name, -1.0f, histogram);
+                }
+                histogram.recordValue(System.nanoTime() - lastTime);
+            }
+
+            // The cache is warm by now, which doesn't change what's allocated.
+            AllocationCounter allocs = new AllocationCounter();
+            int allocReps = (int) Math.min(histogram.getCount(),
+                    AllocationCounter.ALLOC_PASS_ITERATIONS);
+            allocs.start();
+            try {
+                for (int i = 0; i < allocReps; i++) {
+                    long offset = (long) (i % blocks) * block;
+                    readBlock(raf, channel, method, map, buffer, array, offset);
+                }
+            } finally {
+                allocs.stop();
+            }
+            BenchmarkResult result = withThroughput(name, histogram, block);
+            allocs.putAllocationMetrics(result, allocReps);
+            return result;
+        } finally {
+            // Mapped pages can't be dropped from the cache, so unmap now
+            // rather than leave the whole file mapped until a GC.
+            if (map != null) NioUtils.freeDirectBuffer(map);
+        }
+    }
+
+    // Reads one block at offset into array (or buffer); false on EOF.
+    private static boolean readBlock(RandomAccessFile raf, FileChannel channel, String method,
+                                     MappedByteBuffer map, ByteBuffer buffer, byte[] array,
+                                     long offset) throws IOException {
+        if (map != null) {
+            map.position((int) offset);
+            map.get(array, 0, array.length);
+        } else if ("raf".equals(method)) {
+            raf.seek(offset);
+            raf.readFully(array);
+        } else {
+            buffer.clear();
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private BenchmarkResult runWrite(RandomAccessFile raf, FileChannel channel, String method,
+                                     String sync, int block, boolean random)
+            throws IOException, ErrnoException {
+        String name = "file_io/write/" + method + "/" + sync + "/"
+                + (random ? "random" : "seq") + "/block=" + block;
+        LatencyHistogram histogram = new LatencyHistogram();
+        ByteBuffer buffer = "direct".equals(method)
+                ? ByteBuffer.allocateDirect(block) : ByteBuffer.allocate(block);
+        while (buffer.hasRemaining()) {
+            buffer.put((byte) buffer.position());
+        }
+        int blocks = FILE_SIZE / block;
+        int reps = Math.max(MIN_REPS, Math.min(mLoops.getIterations(), blocks));
+        Random offsets = new Random(block);
+        dropCache(raf);
+
+        long loopStart = System.nanoTime();
+        for (int i = 0; i < reps; i++) {
+            boolean last = i == reps - 1 || !mLoops.withinBudget(loopStart);
+            long offset = (long) (random ? offsets.nextInt(blocks) : i % blocks) * block;
+            long lastTime = System.nanoTime();
+            writeBlock(raf, channel, sync, buffer, offset, last);
+            histogram.recordValue(System.nanoTime() - lastTime);
+            if (last) break;
+        }
+
+        AllocationCounter allocs = new AllocationCounter();
+        int allocReps = (int) Math.min(histogram.getCount(),
+                AllocationCounter.ALLOC_PASS_ITERATIONS);
+        allocs.start();
+        try {
+            for (int i = 0; i < allocReps; i++) {
+                writeBlock(raf, channel, sync, buffer, (long) (i % blocks) * block,
+                        i == allocReps - 1);
+            }
+        } finally {
+            allocs.stop();
+        }
+        BenchmarkResult result = withThroughput(name, histogram, block);
+        allocs.putAllocationMetrics(result, allocReps);
+        return result;
+    }
+
+    // Writes buffer at offset, syncing as the sync mode asks; last marks
+    // the final block of a point.
+    private static void writeBlock(RandomAccessFile raf, FileChannel channel, String sync,
+                                   ByteBuffer buffer, long offset, boolean last)
+            throws IOException, ErrnoException {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, offset + buffer.position());
+        }
+        if ("fsync_each".equals(sync)) {
+            Os.fsync(raf.getFD());
+        } else if ("fdatasync_each".equals(sync)
+                || ("fdatasync_end".equals(sync) && last)) {
+            Os.fdatasync(raf.getFD());
+        }
+    }
+
+    private static BenchmarkResult withThroughput(String name, LatencyHistogram histogram,
+                                                  int block) {
+        BenchmarkResult result = new BenchmarkResult(name, histogram.getMeanMillis(), histogram);
+        double seconds = histogram.getMean() / 1000000000.0;
+        result.putMetric("MB_per_sec", seconds > 0 ? block / seconds / (1 << 20) : 0);
+        result.putMetric("block_size", block);
+        Log.v(TAG, result.toString());
+        return result;
+    }
+
+    private static void fill(RandomAccessFile raf) throws IOException {
+        raf.setLength(0);
+        byte[] chunk = new byte[1 << 20];
+        for (int i = 0; i < chunk.length; i++) {
+            chunk[i] = (byte) i;
+        }
+        for (int written = 0; written < FILE_SIZE; written += chunk.length) {
+            raf.write(chunk);
+        }
+    }
+
+    // Clean pages are the only ones the kernel will drop, so sync first.
+    private static void dropCache(RandomAccessFile raf) throws IOException, ErrnoException {
+        Os.fsync(raf.getFD());
+        Os.posix_fadvise(raf.getFD(), 0, 0, OsConstants.POSIX_FADV_DONTNEED);
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.rpc_performance;
+
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Round-trips whole messages through MiscService's framed echo socket,
+ * for payloads from 1 byte to 1 MB, so LocalSocket can be compared with
+ * binder at realistic message sizes rather than a byte at a time.
+ *
+ * Each sample is one request/reply round trip.  Results carry MB/s of
+ * payload echoed (counting each direction once).
+ */
+public class FramedSocketBenchmark {
+
+    private static final String TAG = "FramedSocketBenchmark";
+
+    public static final int[] PAYLOAD_SIZES = {
+        1, 16, 256, 4 * 1024, 64 * 1024, 256 * 1024, MiscService.MAX_FRAME_PAYLOAD,
+    };
+
+    // Caps the bytes moved per payload size so the 1 MB point stays short.
+    private static final long MAX_BYTES_PER_POINT = 64L << 20;
+    private static final int MIN_REPS = 5;
+
+    private final BenchmarkLoops mLoops;
+
+    public FramedSocketBenchmark(BenchmarkLoops loops) {
+        mLoops = loops;
+    }
+
+    public List<BenchmarkResult> run() {
+        ArrayList<BenchmarkResult> results = new ArrayList<BenchmarkResult>();
+        LocalSocket socket = null;
+        try {
+            socket = new LocalSocket();
+            socket.connect(new LocalSocketAddress(MiscService.FRAMED_SOCKET_NAME));
+            InputStream is = socket.getInputStream();
+            OutputStream os = socket.getOutputStream();
+
+            // Both directions reuse one buffer each, sized for the largest frame.
+            byte[] out = new byte[MiscService.FRAME_HEADER_SIZE + MiscService.MAX_FRAME_PAYLOAD];
+            byte[] in = new byte[out.length];
+            for (int i = MiscService.FRAME_HEADER_SIZE; i < out.length; i++) {
+                out[i] = (byte) i;
+            }
+
+            for (int size : PAYLOAD_SIZES) {
+                BenchmarkResult result = runSize(size, is, os, out, in);
+                results.add(result);
+                if (result.isFailure()) break;
+            }
+        } catch (IOException e) {
+            Log.v(TAG, "error in framed socket benchmark: " + e);
+            results.add(new BenchmarkResult("framed_socket", -1.0f, new LatencyHistogram()));
+        } finally {
+            if (socket != null) {
+                try { socket.close(); } catch (IOException e) {}
+            }
+        }
+        return results;
+    }
+
+    private BenchmarkResult runSize(int size, InputStream is, OutputStream os,
+                                    byte[] out, byte[] in) throws IOException {
+        String name = "framed_socket/bytes=" + size;
+        LatencyHistogram histogram = new LatencyHistogram();
+        MiscService.putFrameLength(out, size);
+        int frameSize = MiscService.FRAME_HEADER_SIZE + size;
+        int reps = (int) Math.max(MIN_REPS,
+                Math.min(mLoops.getIterations(), MAX_BYTES_PER_POINT / size));
+
+        long loopStart = System.nanoTime();
+        for (int i = 0; i < reps && mLoops.withinBudget(loopStart); i++) {
+            long beforeTime = System.nanoTime();
+            os.write(out, 0, frameSize);
+            if (!MiscService.readFully(is, in, 0, frameSize)) {
+                Log.w(TAG, "EOF from framed echo server");
+                return new BenchmarkResult(name, -1.0f, histogram);
+            }
+            histogram.recordValue(System.nanoTime() - beforeTime);
+
+            if (MiscService.getFrameLength(in) != size) {
+                Log.w(TAG, "Got wrong frame length back.  Got: "
+                      + MiscService.getFrameLength(in) + "; wanted=" + size);
+                return new BenchmarkResult(name, -999.0f, histogram);
+            }
+        }
+
+        AllocationCounter allocs = new AllocationCounter();
+        int allocReps = (int) Math.min(histogram.getCount(),
+                AllocationCounter.ALLOC_PASS_ITERATIONS);
+        allocs.start();
+        try {
+            for (int i = 0; i < allocReps; i++) {
+                os.write(out, 0, frameSize);
+                if (!MiscService.readFully(is, in, 0, frameSize)) {
+                    Log.w(TAG, "EOF from framed echo server");
+                    return new BenchmarkResult(name, -1.0f, histogram);
+                }
+            }
+        } finally {
+            allocs.stop();
+        }
+
+        BenchmarkResult result = new BenchmarkResult(name, histogram.getMeanMillis(), histogram);
+        double seconds = histogram.getMean() / 1000000000.0;
+        result.putMetric("MB_per_sec", seconds > 0 ? 2.0 * size / seconds / (1 << 20) : 0);
+        allocs.putAllocationMetrics(result, allocReps);
+        return result;
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.rpc_performance;
+
+/**
+ * Fixed-size log-linear histogram of nanosecond samples, in the style of
+ * HdrHistogram.  All storage is allocated up front, so recording a sample
+ * never allocates and never boxes.
+ *
+ * Values below 2^SUB_BUCKET_BITS are stored exactly; above that each
+ * power-of-two range is split into SUB_BUCKET_HALF linear buckets, which
+ * bounds the relative error of any reported value to under 1%.  Count,
+ * min, max, mean and standard deviation are tracked exactly.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 8;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF_BITS = SUB_BUCKET_BITS - 1;
+    private static final int SUB_BUCKET_HALF = 1 << SUB_BUCKET_HALF_BITS;
+
+    // Largest trackable value is 2^42 ns (a bit over an hour); anything
+    // bigger is clamped into the last bucket.
+    private static final int MAX_VALUE_BITS = 42;
+    private static final long MAX_TRACKABLE_VALUE = (1L << MAX_VALUE_BITS) - 1;
+    private static final int BUCKET_COUNT =
+            (MAX_VALUE_BITS - SUB_BUCKET_BITS + 2) * SUB_BUCKET_HALF;
+
+    private final long[] mCounts = new long[BUCKET_COUNT];
+    private long mTotalCount;
+    private long mMin;
+    private long mMax;
+    private long mSum;
+    private double mSumOfSquares;
+
+    public LatencyHistogram() {
+        reset();
+    }
+
+    public void reset() {
+        java.util.Arrays.fill(mCounts, 0);
+        mTotalCount = 0;
+        mMin = Long.MAX_VALUE;
+        mMax = 0;
+        mSum = 0;
+        mSumOfSquares = 0;
+    }
+
+    /** Records a single sample, in nanoseconds.  Negative values are ignored. */
+    public void recordValue(long nanos) {
+        if (nanos < 0) return;
+        mCounts[bucketIndex(nanos)]++;
+        mTotalCount++;
+        if (nanos < mMin) mMin = nanos;
+        if (nanos > mMax) mMax = nanos;
+        mSum += nanos;
+        mSumOfSquares += (double) nanos * (double) nanos;
+    }
+
+    /** Adds all of other's samples to this histogram. */
+    public void add(LatencyHistogram other) {
+        if (other.mTotalCount == 0) return;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts[i] += other.mCounts[i];
+        }
+        mTotalCount += other.mTotalCount;
+        if (other.mMin < mMin) mMin = other.mMin;
+        if (other.mMax > mMax) mMax = other.mMax;
+        mSum += other.mSum;
+        mSumOfSquares += other.mSumOfSquares;
+    }
+
+    public long getCount() {
+        return mTotalCount;
+    }
+
+    public long getMin() {
+        return mTotalCount == 0 ? 0 : mMin;
+    }
+
+    public long getMax() {
+        return mMax;
+    }
+
+    /** Returns the exact mean, in nanoseconds. */
+    public double getMean() {
+        return mTotalCount == 0 ? 0.0 : (double) mSum / (double) mTotalCount;
+    }
+
+    /** Returns the exact mean, in milliseconds. */
+    public float getMeanMillis() {
+        return (float) (getMean() / 1000000.0);
+    }
+
+    /** Returns the population standard deviation, in nanoseconds. */
+    public double getStdDev() {
+        if (mTotalCount == 0) return 0.0;
+        double mean = getMean();
+        double variance = mSumOfSquares / (double) mTotalCount - mean * mean;
+        return variance > 0.0 ? Math.sqrt(variance) : 0.0;
+    }
+
+    /**
+     * Returns the value (nanoseconds) below which the given percentage of
+     * samples fall.  The result is the top of the matching bucket, capped
+     * at the largest recorded sample.
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (mTotalCount == 0) return 0;
+        double fraction = Math.min(Math.max(percentile, 0.0), 100.0) / 100.0;
+        long target = Math.max(1, (long) Math.ceil(fraction * mTotalCount));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mCounts[i];
+            if (seen >= target) {
+                return Math.min(highestEquivalentValue(i), mMax);
+            }
+        }
+        return mMax;
+    }
+
+    /** Number of buckets; indexes for getCountAtBucket() run from 0 to getBucketCount() - 1. */
+    public static int getBucketCount() {
+        return BUCKET_COUNT;
+    }
+
+    /**
+     * Returns the number of samples in the given bucket.  Buckets are in
+     * increasing value order, so two histograms can be merged bucket by
+     * bucket, e.g. to rank their samples against each other.
+     */
+    public long getCountAtBucket(int index) {
+        return mCounts[index];
+    }
+
+    /**
+     * Encodes the histogram as one line of text: count, min, max, sum and
+     * sum of squares, then "index:count" for each non-empty bucket, all
+     * space-separated.  {@link #decode} reverses it exactly.
+     */
+    public String encode() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(mTotalCount).append(' ').append(getMin()).append(' ').append(mMax)
+                .append(' ').append(mSum).append(' ').append(mSumOfSquares);
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            if (mCounts[i] != 0) {
+                sb.append(' ').append(i).append(':').append(mCounts[i]);
+            }
+        }
+        return sb.toString();
+    }
+
+    /** Parses the output of {@link #encode}. */
+    public static LatencyHistogram decode(String encoded) {
+        String[] tokens = encoded.trim().split(" ");
+        if (tokens.length < 5) {
+            throw new IllegalArgumentException("Bad histogram: " + encoded);
+        }
+        LatencyHistogram h = new LatencyHistogram();
+        h.mTotalCount = Long.parseLong(tokens[0]);
+        h.mMin = h.mTotalCount == 0 ? Long.MAX_VALUE : Long.parseLong(tokens[1]);
+        h.mMax = Long.parseLong(tokens[2]);
+        h.mSum = Long.parseLong(tokens[3]);
+        h.mSumOfSquares = Double.parseDouble(tokens[4]);
+        for (int i = 5; i < tokens.length; i++) {
+            int colon = tokens[i].indexOf(':');
+            int index = Integer.parseInt(tokens[i].substring(0, colon));
+            if (index < 0 || index >= BUCKET_COUNT) {
+                throw new IllegalArgumentException("Bad bucket: " + tokens[i]);
+            }
+            h.mCounts[index] = Long.parseLong(tokens[i].substring(colon + 1));
+        }
+        return h;
+    }
+
+    /**
+     * Formats the distribution for display below a benchmark label, in
+     * milliseconds.
+     */
+    public String toSummaryString() {
+        return "p50 " + millis(getValueAtPercentile(50.0))
+                + " p90 " + millis(getValueAtPercentile(90.0))
+                + "\np99 " + millis(getValueAtPercentile(99.0))
+                + " p99.9 " + millis(getValueAtPercentile(99.9))
+                + "\nmax " + millis(mMax)
+                + " sd " + millis((long) getStdDev())
+                + " (n=" + mTotalCount + ")";
+    }
+
+    private static String millis(long nanos) {
+        return Float.toString((float) nanos / 1000000.0f);
+    }
+
+    private static int bucketIndex(long value) {
+        if (value > MAX_TRACKABLE_VALUE) value = MAX_TRACKABLE_VALUE;
+        if (value < SUB_BUCKET_COUNT) return (int) value;
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        int shift = msb - SUB_BUCKET_HALF_BITS;
+        return (shift << SUB_BUCKET_HALF_BITS) + (int) (value >>> shift);
+    }
+
+    private static long lowestEquivalentValue(int index) {
+        if (index < SUB_BUCKET_COUNT) return index;
+        int shift = (index >>> SUB_BUCKET_HALF_BITS) - 1;
+        long subBucket = index - ((long) shift << SUB_BUCKET_HALF_BITS);
+        return subBucket << shift;
+    }
+
+    private static long highestEquivalentValue(int index) {
+        if (index < SUB_BUCKET_COUNT) return index;
+        int shift = (index >>> SUB_BUCKET_HALF_BITS) - 1;
+        return lowestEquivalentValue(index) + (1L << shift) - 1;
+    }
+}
@@ -21,6 +21,11 @@ import android.content.Intent;
 import android.os.Binder;
 import android.os.Debug;
 import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.os.RemoteException;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
 import android.util.Log;
 import android.net.LocalServerSocket;
 import android.net.LocalSocket;
@@ -28,20 +33,36 @@ import android.net.LocalSocket;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 public class MiscService extends Service {
 
     public static final String SOCKET_NAME = "play-misc-service";
+    public static final String FRAMED_SOCKET_NAME = "play-misc-service-framed";
     private static final String TAG = "MiscService";
 
-    private LocalServerSocket mServerSocket = null;
+    // Framed echo protocol: a 4-byte big-endian payload length, then the
+    // payload.  The reply is the same frame.
+    public static final int FRAME_HEADER_SIZE = 4;
+    public static final int MAX_FRAME_PAYLOAD = 1 << 20;
+
+    // How many times a shared ring consumer polls before sleeping on its
+    // doorbell.  Enough to cover a small-message round trip without a
+    // syscall, small enough not to burn a core when idle.
+    public static final int SHARED_RING_SPINS = 2000;
 
     @Override public void onCreate() {
         Log.v(TAG, "onCreate");
+        startServer(SOCKET_NAME, false);
+        startServer(FRAMED_SOCKET_NAME, true);
+    }
+
+    private void startServer(String name, final boolean framed) {
+        final LocalServerSocket serverSocket;
         try {
-            mServerSocket = new LocalServerSocket(SOCKET_NAME);
+            serverSocket = new LocalServerSocket(name);
         } catch (IOException e) {
-            Log.v(TAG, "in onCreate, making server socket: " + e);
+            Log.v(TAG, "in onCreate, making server socket " + name + ": " + e);
             return;
         }
 
@@ -51,12 +72,14 @@ public class MiscService extends Service {
                     while (true) {
                         try {
                             Log.v(TAG, "Waiting for connection...");
-                            socket = mServerSocket.accept();
+                            socket = serverSocket.accept();
                             Log.v(TAG, "Got socket: " + socket);
-                            if (socket != null) {
-                                startEchoThread(socket);
-                            } else {
+                            if (socket == null) {
                                 return;  // socket shutdown?
+                            } else if (framed) {
+                                startFramedEchoThread(socket);
+                            } else {
+                                startEchoThread(socket);
                             }
                         } catch (IOException e) {
                             Log.v(TAG, "in accept: " + e);
@@ -88,6 +111,108 @@ public class MiscService extends Service {
         t.start();
     }
 
+    // Echoes whole frames.  The frame is read into, and written back from,
+    // one buffer allocated per connection, so the reply is a single write.
+    private void startFramedEchoThread(final LocalSocket socket) {
+        Thread t = new Thread() {
+                @Override public void run() {
+                    byte[] buf = new byte[FRAME_HEADER_SIZE + MAX_FRAME_PAYLOAD];
+                    try {
+                        InputStream is = socket.getInputStream();
+                        OutputStream os = socket.getOutputStream();
+                        while (readFully(is, buf, 0, FRAME_HEADER_SIZE)) {
+                            int length = getFrameLength(buf);
+                            if (length < 0 || length > MAX_FRAME_PAYLOAD) {
+                                Log.w(TAG, "Bad frame length: " + length);
+                                return;
+                            }
+                            if (!readFully(is, buf, FRAME_HEADER_SIZE, length)) {
+                                return;  // EOF mid-frame.
+                            }
+                            os.write(buf, 0, FRAME_HEADER_SIZE + length);
+                        }
+                    } catch (IOException e) {
+                        Log.v(TAG, "in framed echo thread loop: " + e);
+                    } finally {
+                        try { socket.close(); } catch (IOException e) {}
+                    }
+                }
+            };
+        t.start();
+    }
+
+    // Echoes messages from the request ring to the response ring until the
+    // client closes the request ring.  Both rings live in region, request
+    // first, as laid out by SharedMemoryBenchmark.
+    private void startSharedRingThread(final SharedMemory region, final int capacity,
+            final ParcelFileDescriptor requestDoorbell,
+            final ParcelFileDescriptor responseDoorbell) {
+        Thread t = new Thread("shared-ring-echo") {
+                @Override public void run() {
+                    ByteBuffer map = null;
+                    SharedRing response = null;
+                    InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(requestDoorbell);
+                    OutputStream out =
+                            new ParcelFileDescriptor.AutoCloseOutputStream(responseDoorbell);
+                    try {
+                        map = region.mapReadWrite();
+                        SharedRing request = new SharedRing(map, 0, capacity, in, null);
+                        response = new SharedRing(
+                                map, SharedRing.regionSize(capacity), capacity, null, out);
+                        byte[] buf = new byte[request.maxPayload()];
+                        while (request.awaitReadable(SHARED_RING_SPINS)) {
+                            int length;
+                            while ((length = request.poll(buf)) >= 0) {
+                                if (!response.offer(buf, length)) {
+                                    Log.w(TAG, "Response ring full");
+                                    return;
+                                }
+                            }
+                        }
+                    } catch (ErrnoException e) {
+                        Log.v(TAG, "mapping shared ring: " + e);
+                    } catch (IOException e) {
+                        Log.v(TAG, "in shared ring echo loop: " + e);
+                    } finally {
+                        // Wake the client up if it's waiting for a reply that
+                        // will never come.
+                        if (response != null) {
+                            try { response.close(); } catch (IOException e) {}
+                        }
+                        if (map != null) SharedMemory.unmap(map);
+                        region.close();
+                        try { in.close(); } catch (IOException e) {}
+                        try { out.close(); } catch (IOException e) {}
+                    }
+                }
+            };
+        t.start();
+    }
+
+    /** Reads exactly len bytes; returns false on EOF. */
+    static boolean readFully(InputStream is, byte[] buf, int offset, int len)
+            throws IOException {
+        while (len > 0) {
+            int n = is.read(buf, offset, len);
+            if (n < 0) return false;
+            offset += n;
+            len -= n;
+        }
+        return true;
+    }
+
+    static int getFrameLength(byte[] buf) {
+        return ((buf[0] & 0xff) << 24) | ((buf[1] & 0xff) << 16)
+                | ((buf[2] & 0xff) << 8) | (buf[3] & 0xff);
+    }
+
+    static void putFrameLength(byte[] buf, int length) {
+        buf[0] = (byte) (length >>> 24);
+        buf[1] = (byte) (length >>> 16);
+        buf[2] = (byte) (length >>> 8);
+        buf[3] = (byte) length;
+    }
+
     @Override public IBinder onBind(Intent intent) {
         Log.v(TAG, "onBind");
         return mBinder;
@@ -99,11 +224,28 @@ public class MiscService extends Service {
         }
         public void pingVoid() {
         }
+        public int pingBytes(byte[] data) {
+            return data == null ? -1 : data.length;
+        }
+        public void pingOneway(int seq, ICompletionCallback callback) {
+            try {
+                callback.onComplete(seq);
+            } catch (RemoteException e) {
+                Log.v(TAG, "completion callback failed: " + e);
+            }
+        }
         public void startTracing(String name) {
             Debug.startMethodTracing(name);
         }
         public void stopTracing() {
             Debug.stopMethodTracing();
         }
+        public int getPid() {
+            return Process.myPid();
+        }
+        public void attachSharedRing(SharedMemory region, int capacity,
+                ParcelFileDescriptor requestDoorbell, ParcelFileDescriptor responseDoorbell) {
+            startSharedRingThread(region, capacity, requestDoorbell, responseDoorbell);
+        }
     };
 }
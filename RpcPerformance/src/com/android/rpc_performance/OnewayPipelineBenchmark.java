@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.rpc_performance;
+
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares synchronous pingVoid() round trips with oneway pingOneway()
+ * calls pipelined K deep: the client keeps up to K calls outstanding and
+ * sends the next one as soon as any ICompletionCallback arrives.
+ *
+ * Each sample is one call's time from send to acknowledgement, so latency
+ * grows with K while throughput (calls/sec over the whole run) shows what
+ * fire-and-forget buys over the sync round trip.  Oneway transactions to
+ * one binder are delivered in order, so acknowledgements come back in
+ * order too.
+ */
+public class OnewayPipelineBenchmark {
+
+    private static final String TAG = "OnewayPipelineBenchmark";
+
+    public static final int[] DEPTHS = {1, 2, 4, 8, 16, 32, 64};
+
+    // How long to wait for the last acknowledgements before calling it lost.
+    private static final long DRAIN_TIMEOUT_MILLIS = 10000;
+
+    private final BenchmarkLoops mLoops;
+
+    public OnewayPipelineBenchmark(BenchmarkLoops loops) {
+        mLoops = loops;
+    }
+
+    public List<BenchmarkResult> run() throws InterruptedException {
+        ArrayList<BenchmarkResult> results = new ArrayList<BenchmarkResult>();
+        IService stub = mLoops.getServiceStub();
+        if (stub == null) {
+            Log.v(TAG, "No service stub.");
+            results.add(new BenchmarkResult("oneway", -999, new LatencyHistogram()));
+            return results;
+        }
+
+        BenchmarkResult sync = runSync(stub);
+        results.add(sync);
+        if (sync.isFailure()) return results;
+        double syncRate = sync.getMetrics().get("calls_per_sec");
+
+        for (int depth : DEPTHS) {
+            BenchmarkResult result = runPipelined(stub, depth);
+            if (!result.isFailure() && syncRate > 0) {
+                result.putMetric("speedup", result.getMetrics().get("calls_per_sec") / syncRate);
+            }
+            results.add(result);
+            if (result.isFailure()) break;
+        }
+        return results;
+    }
+
+    private BenchmarkResult runSync(IService stub) {
+        String name = "oneway/sync";
+        LatencyHistogram histogram = new LatencyHistogram();
+        long loopStart = System.nanoTime();
+        try {
+            for (int i = 0; mLoops.keepRunning(i, loopStart); i++) {
+                long lastTime = System.nanoTime();
+                stub.pingVoid();
+                histogram.recordValue(System.nanoTime() - lastTime);
+            }
+        } catch (RemoteException e) {
+            Log.e(TAG, "Binder call failed", e);
+            return new BenchmarkResult(name, -999, histogram);
+        }
+        long wallNanos = System.nanoTime() - loopStart;
+
+        AllocationCounter allocs = new AllocationCounter();
+        int allocReps = (int) Math.min(histogram.getCount(),
+                AllocationCounter.ALLOC_PASS_ITERATIONS);
+        allocs.start();
+        try {
+            for (int i = 0; i < allocReps; i++) {
+                stub.pingVoid();
+            }
+        } catch (RemoteException e) {
+            Log.e(TAG, "Binder call failed", e);
+            return new BenchmarkResult(name, -999, histogram);
+        } finally {
+            allocs.stop();
+        }
+        BenchmarkResult result = withThroughput(name, histogram, wallNanos);
+        allocs.putAllocationMetrics(result, allocReps);
+        return result;
+    }
+
+    private BenchmarkResult runPipelined(IService stub, final int depth)
+            throws InterruptedException {
+        String name = "oneway/k=" + depth;
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final Semaphore window = new Semaphore(depth);
+        final long[] sendTimes = new long[depth];
+
+        // Completions arrive in send order, so seq % depth is always the
+        // slot of an outstanding call.
+        ICompletionCallback callback = new ICompletionCallback.Stub() {
+            public void onComplete(int seq) {
+                long now = System.nanoTime();
+                synchronized (histogram) {
+                    histogram.recordValue(now - sendTimes[seq % depth]);
+                }
+                window.release();
+            }
+        };
+
+        long loopStart = System.nanoTime();
+        int sent = 0;
+        try {
+            for (; mLoops.keepRunning(sent, loopStart); sent++) {
+                window.acquire();
+                synchronized (histogram) {
+                    sendTimes[sent % depth] = System.nanoTime();
+                }
+                stub.pingOneway(sent, callback);
+            }
+        } catch (RemoteException e) {
+            Log.e(TAG, "Oneway call failed", e);
+            return new BenchmarkResult(name, -999, histogram);
+        }
+        if (!window.tryAcquire(depth, DRAIN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+            Log.w(TAG, "Lost acknowledgements at depth " + depth);
+            return new BenchmarkResult(name, -1.0f, histogram);
+        }
+        long wallNanos = System.nanoTime() - loopStart;
+
+        synchronized (histogram) {
+            BenchmarkResult result = withThroughput(name, histogram, wallNanos);
+            result.putMetric("depth", depth);
+            return result;
+        }
+    }
+
+    private static BenchmarkResult withThroughput(String name, LatencyHistogram histogram,
+                                                  long wallNanos) {
+        BenchmarkResult result = new BenchmarkResult(name, histogram.getMeanMillis(), histogram);
+        result.putMetric("calls_per_sec",
+                wallNanos > 0 ? histogram.getCount() * 1000000000.0 / wallNanos : 0);
+        Log.v(TAG, result.toString());
+        return result;
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.rpc_performance;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Marshals the same structured payload several ways and reads it back,
+ * to find the cheapest encoding for large transactions:
+ *
+ *   bytes       one writeByteArray() of the raw size
+ *   arrays      one typed array per record field (writeIntArray(),
+ *               writeLongArray(), ...), i.e. columns instead of rows
+ *   parcelable  writeTypedArray() of Record Parcelables
+ *   bundle      a Bundle holding one nested Bundle per record
+ *
+ * Each encoding runs with a fresh Parcel.obtain()/recycle() per
+ * operation and with one Parcel reused by rewinding it with
+ * setDataPosition(0)/setDataSize(0).  A sample is one write plus the
+ * matching read.  Results carry the marshalled size, MB/s and the bytes
+ * and objects allocated per operation, counted over a separate untimed
+ * pass.
+ */
+public class ParcelSerializationBenchmark {
+
+    private static final String TAG = "ParcelSerializationBenchmark";
+
+    public static final String[] ENCODINGS = {"bytes", "arrays", "parcelable", "bundle"};
+
+    // Payload sizes; structured encodings use size / RECORD_SIZE records,
+    // so their marshalled size (reported as parcel_bytes) differs.
+    public static final int[] SIZES = {1024, 16 * 1024, 256 * 1024};
+
+    private static final int RECORD_SIZE = 32;
+    private static final long MAX_BYTES_PER_POINT = 64L << 20;
+    private static final int MIN_REPS = 5;
+
+    /** A typical small record: ids, a timestamp, a value and a label. */
+    public static class Record implements Parcelable {
+        public final int id;
+        public final int flags;
+        public final long timestamp;
+        public final double value;
+        public final String label;
+
+        public Record(int id, int flags, long timestamp, double value, String label) {
+            this.id = id;
+            this.flags = flags;
+            this.timestamp = timestamp;
+            this.value = value;
+            this.label = label;
+        }
+
+        public int describeContents() {
+            return 0;
+        }
+
+        public void writeToParcel(Parcel dest, int flags) {
+            dest.writeInt(id);
+            dest.writeInt(this.flags);
+            dest.writeLong(timestamp);
+            dest.writeDouble(value);
+            dest.writeString(label);
+        }
+
+        public static final Parcelable.Creator<Record> CREATOR = new Parcelable.Creator<Record>() {
+            public Record createFromParcel(Parcel source) {
+                return new Record(source.readInt(), source.readInt(), source.readLong(),
+                        source.readDouble(), source.readString());
+            }
+
+            public Record[] newArray(int size) {
+                return new Record[size];
+            }
+        };
+    }
+
+    // The same records, one array per field.
+    private static class Columns {
+        final int[] ids;
+        final int[] flags;
+        final long[] timestamps;
+        final double[] values;
+        final String[] labels;
+
+        Columns(int records) {
+            ids = new int[records];
+            flags = new int[records];
+            timestamps = new long[records];
+            values = new double[records];
+            labels = new String[records];
+        }
+    }
+
+    private final BenchmarkLoops mLoops;
+
+    public ParcelSerializationBenchmark(BenchmarkLoops loops) {
+        mLoops = loops;
+    }
+
+    public List<BenchmarkResult> run() {
+        ArrayList<BenchmarkResult> results = new ArrayList<BenchmarkResult>();
+        for (int size : SIZES) {
+            for (String encoding : ENCODINGS) {
+                BenchmarkResult fresh = runPoint(encoding, size, false);
+                BenchmarkResult reused = runPoint(encoding, size, true);
+                if (!fresh.isFailure() && !reused.isFailure() && reused.avgMillis > 0) {
+                    reused.putMetric("reuse_speedup", fresh.avgMillis / reused.avgMillis);
+                }
+                results.add(fresh);
+                results.add(reused);
+            }
+        }
+        return results;
+    }
+
+    private BenchmarkResult runPoint(String encoding, int size, boolean reuse) {
+        String name = "parcel/" + encoding + "/bytes=" + size + (reuse ? "/reuse" : "/obtain");
+        LatencyHistogram histogram = new LatencyHistogram();
+        Object payload = makePayload(encoding, size / RECORD_SIZE, size);
+        int reps = (int) Math.max(MIN_REPS,
+                Math.min(mLoops.getIterations(), MAX_BYTES_PER_POINT / size));
+
+        // One untimed round trip checks the encoding and measures it.
+        Parcel reused = Parcel.obtain();
+        int marshalled;
+        try {
+            write(reused, encoding, payload);
+            marshalled = reused.dataSize();
+            reused.setDataPosition(0);
+            if (!read(reused, encoding, payload)) {
+                Log.w(TAG, name + ": payload didn't survive the round trip");
+                return new BenchmarkResult(name, -1.0f, histogram);
+            }
+            reused.setDataPosition(0);
+            reused.setDataSize(0);
+
+            AllocationCounter gcs = new AllocationCounter(false);
+            long loopStart = System.nanoTime();
+            gcs.start();
+            try {
+                for (int i = 0; i < reps && mLoops.withinBudget(loopStart); i++) {
+                    long lastTime = System.nanoTime();
+                    roundTrip(reuse ? reused : null, encoding, payload);
+                    histogram.recordValue(System.nanoTime() - lastTime);
+                }
+            } finally {
+                gcs.stop();
+            }
+
+            // Counting slows allocation down, so count over an untimed pass.
+            AllocationCounter allocs = new AllocationCounter();
+            int allocReps = Math.min(reps, AllocationCounter.ALLOC_PASS_ITERATIONS);
+            allocs.start();
+            try {
+                for (int i = 0; i < allocReps; i++) {
+                    roundTrip(reuse ? reused : null, encoding, payload);
+                }
+            } finally {
+                allocs.stop();
+            }
+
+            BenchmarkResult result =
+                    new BenchmarkResult(name, histogram.getMeanMillis(), histogram);
+            result.putMetric("parcel_bytes", marshalled);
+            double seconds = histogram.getMean() / 1000000000.0;
+            result.putMetric("MB_per_sec", seconds > 0 ? marshalled / seconds / (1 << 20) : 0);
+            gcs.putGcMetrics(result);
+            allocs.putAllocationMetrics(result, allocReps);
+            Log.v(TAG, result.toString());
+            return result;
+        } finally {
+            reused.recycle();
+        }
+    }
+
+    // One write and read, in reused (rewound afterwards) or, if it's
+    // null, in a freshly obtained Parcel.
+    private static void roundTrip(Parcel reused, String encoding, Object payload) {
+        Parcel p = reused != null ? reused : Parcel.obtain();
+        write(p, encoding, payload);
+        p.setDataPosition(0);
+        read(p, encoding, payload);
+        if (reused != null) {
+            p.setDataPosition(0);
+            p.setDataSize(0);
+        } else {
+            p.recycle();
+        }
+    }
+
+    private static Object makePayload(String encoding, int records, int size) {
+        if ("bytes".equals(encoding)) {
+            byte[] bytes = new byte[size];
+            for (int i = 0; i < size; i++) {
+                bytes[i] = (byte) i;
+            }
+            return bytes;
+        }
+        if ("arrays".equals(encoding)) {
+            Columns columns = new Columns(records);
+            for (int i = 0; i < records; i++) {
+                Record r = makeRecord(i);
+                columns.ids[i] = r.id;
+                columns.flags[i] = r.flags;
+                columns.timestamps[i] = r.timestamp;
+                columns.values[i] = r.value;
+                columns.labels[i] = r.label;
+            }
+            return columns;
+        }
+        if ("parcelable".equals(encoding)) {
+            Record[] array = new Record[records];
+            for (int i = 0; i < records; i++) {
+                array[i] = makeRecord(i);
+            }
+            return array;
+        }
+        Bundle bundle = new Bundle();
+        for (int i = 0; i < records; i++) {
+            Record r = makeRecord(i);
+            Bundle child = new Bundle();
+            child.putInt("id", r.id);
+            child.putInt("flags", r.flags);
+            child.putLong("timestamp", r.timestamp);
+            child.putDouble("value", r.value);
+            child.putString("label", r.label);
+            bundle.putBundle(Integer.toString(i), child);
+        }
+        return bundle;
+    }
+
+    private static Record makeRecord(int i) {
+        return new Record(i, i & 0xff, 1262304000000L + i * 1000L, i * 0.5, "item" + i);
+    }
+
+    private static void write(Parcel p, String encoding, Object payload) {
+        if ("bytes".equals(encoding)) {
+            p.writeByteArray((byte[]) payload);
+        } else if ("arrays".equals(encoding)) {
+            Columns columns = (Columns) payload;
+            p.writeIntArray(columns.ids);
+            p.writeIntArray(columns.flags);
+            p.writeLongArray(columns.timestamps);
+            p.writeDoubleArray(columns.values);
+            p.writeStringArray(columns.labels);
+        } else if ("parcelable".equals(encoding)) {
+            p.writeTypedArray((Record[]) payload, 0);
+        } else {
+            p.writeBundle((Bundle) payload);
+        }
+    }
+
+    // Reads the payload back, fully unparcelling nested Bundles, and
+    // returns whether it has the expected number of elements.
+    private static boolean read(Parcel p, String encoding, Object payload) {
+        if ("bytes".equals(encoding)) {
+            byte[] bytes = p.createByteArray();
+            return bytes != null && bytes.length == ((byte[]) payload).length;
+        }
+        if ("arrays".equals(encoding)) {
+            int[] ids = p.createIntArray();
+            int[] flags = p.createIntArray();
+            long[] timestamps = p.createLongArray();
+            double[] values = p.createDoubleArray();
+            String[] labels = p.createStringArray();
+            int records = ((Columns) payload).ids.length;
+            return ids != null && ids.length == records && flags.length == records
+                    && timestamps.length == records && values.length == records
+                    && labels.length == records;
+        }
+        if ("parcelable".equals(encoding)) {
+            Record[] array = p.createTypedArray(Record.CREATOR);
+            return array != null && array.length == ((Record[]) payload).length;
+        }
+        Bundle bundle = p.readBundle();
+        if (bundle == null) return false;
+        int children = 0;
+        for (String key : bundle.keySet()) {
+            Bundle child = bundle.getBundle(key);
+            if (child != null && child.size() == 5) children++;
+        }
+        return children == ((Bundle) payload).size();
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.rpc_performance;
+
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.content.Context;
+import android.os.Bundle;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Runs BenchmarkLoops without any UI, for unattended regression runs:
+ *
+ *   adb shell am instrument -w -r \
+ *       -e loops service_void,noop_xproc_query \
+ *       -e iterations 1000 -e budget_ms 5000 -e format both \
+ *       com.android.rpc_performance/.PerfInstrumentation
+ *
+ * Arguments (all optional):
+ *   loops       comma-separated loop and sweep names; defaults to every
+ *               loop (sweeps only run when named)
+ *   iterations  samples per loop (default 100)
+ *   budget_ms   per-loop wall-clock limit, 0 for none (default 0)
+ *   format      json, csv or both (default json)
+ *   output      base file name, without extension (default rpcperf)
+ *   history     file in internal storage that every run is appended to
+ *               and compared against (default rpcperf-history.tsv);
+ *               "none" disables it
+ *   proc_sample "false" turns off the per-process CPU, binder and
+ *               cpufreq metrics read from /proc (default true; harness
+ *               runs never have them)
+ *   procstatlog path of a procstatlog capture taken during the run; its
+ *               per-process CPU and per-disk totals are summarized in
+ *               the status output
+ *
+ * Harness arguments; if trials > 1 or warmup_max > 0 every loop is run
+ * through BenchmarkHarness, with fresh remote processes for each trial:
+ *   trials        independent trials per loop (default 1)
+ *   warmup_max    upper bound on warmup iterations per trial (default 0)
+ *   warmup_batch  iterations per warmup batch (default 20)
+ *   cv            steady-state coefficient of variation (default 0.05)
+ *
+ * Results are written to the app's external files directory (falling
+ * back to internal storage) and echoed in the instrumentation status.
+ */
+public class PerfInstrumentation extends Instrumentation {
+
+    private static final String TAG = "PerfInstrumentation";
+    private static final long BIND_TIMEOUT_MILLIS = 10000;
+
+    private String[] mLoopNames = BenchmarkLoops.NAMES;
+    private int mIterations = 100;
+    private long mBudgetMillis = 0;
+    private String mFormat = "json";
+    private String mOutputName = "rpcperf";
+    private String mHistoryName = ResultStore.DEFAULT_FILE_NAME;
+    private boolean mProcSample = true;
+    private String mProcStatLog = null;
+    private int mTrials = 1;
+    private int mWarmupMax = 0;
+    private int mWarmupBatch = 20;
+    private double mCvThreshold = 0.05;
+
+    @Override public void onCreate(Bundle arguments) {
+        super.onCreate(arguments);
+        if (arguments != null) {
+            String loops = arguments.getString("loops");
+            if (!TextUtils.isEmpty(loops)) mLoopNames = loops.split(",");
+            mIterations = parseInt(arguments.getString("iterations"), mIterations);
+            mBudgetMillis = parseInt(arguments.getString("budget_ms"), (int) mBudgetMillis);
+            String format = arguments.getString("format");
+            if (!TextUtils.isEmpty(format)) mFormat = format;
+            String output = arguments.getString("output");
+            if (!TextUtils.isEmpty(output)) mOutputName = output;
+            String history = arguments.getString("history");
+            if (!TextUtils.isEmpty(history)) mHistoryName = history;
+            mProcSample = !"false".equals(arguments.getString("proc_sample"));
+            mProcStatLog = arguments.getString("procstatlog");
+            mTrials = parseInt(arguments.getString("trials"), mTrials);
+            mWarmupMax = parseInt(arguments.getString("warmup_max"), mWarmupMax);
+            mWarmupBatch = parseInt(arguments.getString("warmup_batch"), mWarmupBatch);
+            String cv = arguments.getString("cv");
+            if (!TextUtils.isEmpty(cv)) {
+                try {
+                    mCvThreshold = Double.parseDouble(cv);
+                } catch (NumberFormatException e) {
+                    Log.w(TAG, "Bad number: " + cv);
+                }
+            }
+        }
+        start();
+    }
+
+    @Override public void onStart() {
+        Context context = getTargetContext();
+        Bundle status = new Bundle();
+
+        for (String name : mLoopNames) {
+            if (!BenchmarkLoops.isKnownLoop(name) && !BenchmarkLoops.isKnownSweep(name)) {
+                status.putString(REPORT_KEY_STREAMRESULT, "Unknown loop: " + name + "\n");
+                finish(Activity.RESULT_CANCELED, status);
+                return;
+            }
+        }
+
+        BenchmarkLoops loops = new BenchmarkLoops(context);
+        loops.setIterations(mIterations);
+        loops.setTimeBudgetMillis(mBudgetMillis);
+        loops.setDetailedResults(true);
+        if (mProcSample) loops.setProcSampler(new ProcSampler());
+
+        RemoteServiceController controller = new RemoteServiceController(context, loops);
+        controller.bind();
+        try {
+            if (!controller.awaitConnected(BIND_TIMEOUT_MILLIS)) {
+                Log.w(TAG, "MiscService did not bind; service loops will fail");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        BenchmarkHarness harness = null;
+        if (mTrials > 1 || mWarmupMax > 0) {
+            harness = new BenchmarkHarness(loops, controller);
+            harness.setTrials(mTrials);
+            harness.setMaxWarmupIterations(mWarmupMax);
+            harness.setWarmupBatch(mWarmupBatch);
+            harness.setCvThreshold(mCvThreshold);
+            harness.setMeasurementIterations(mIterations);
+        }
+
+        ArrayList<BenchmarkResult> results = new ArrayList<BenchmarkResult>();
+        for (String name : mLoopNames) {
+            if (BenchmarkLoops.isKnownSweep(name)) {
+                try {
+                    for (BenchmarkResult result : loops.runSweep(name)) {
+                        results.add(result);
+                        report(result);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                continue;
+            }
+
+            BenchmarkResult result;
+            if (harness != null) {
+                try {
+                    result = harness.run(name);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            } else {
+                result = loops.measure(name);
+            }
+            results.add(result);
+            report(result);
+            status.putFloat(name, result.avgMillis);
+        }
+
+        controller.unbind();
+
+        // Before the exports, so they carry the comparison metrics too.
+        if (!"none".equals(mHistoryName)) {
+            try {
+                ResultStore store = new ResultStore(new File(context.getFilesDir(), mHistoryName));
+                StringBuilder sb = new StringBuilder();
+                for (ResultComparator.Comparison c
+                        : store.record(results, new ResultComparator())) {
+                    sb.append(c).append('\n');
+                }
+                if (sb.length() > 0) {
+                    Bundle progress = new Bundle();
+                    progress.putString(REPORT_KEY_STREAMRESULT, "Regressions:\n" + sb);
+                    sendStatus(0, progress);
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Couldn't update history: " + e);
+            }
+        }
+
+        if (!TextUtils.isEmpty(mProcStatLog)) {
+            Bundle progress = new Bundle();
+            try {
+                ProcStatLogSummary summary = ProcStatLogSummary.summarize(new File(mProcStatLog));
+                progress.putString(REPORT_KEY_STREAMRESULT,
+                        mProcStatLog + ":\n" + summary.toReportString(10));
+            } catch (IOException e) {
+                Log.w(TAG, "Couldn't read " + mProcStatLog + ": " + e);
+                progress.putString(REPORT_KEY_STREAMRESULT,
+                        "Couldn't read " + mProcStatLog + ": " + e + "\n");
+            }
+            sendStatus(0, progress);
+        }
+
+        try {
+            File dir = context.getExternalFilesDir(null);
+            if (dir == null) dir = context.getFilesDir();
+            StringBuilder written = new StringBuilder();
+            if ("json".equals(mFormat) || "both".equals(mFormat)) {
+                File f = new File(dir, mOutputName + ".json");
+                ResultWriter.writeJson(f, results);
+                written.append(f).append('\n');
+            }
+            if ("csv".equals(mFormat) || "both".equals(mFormat)) {
+                File f = new File(dir, mOutputName + ".csv");
+                ResultWriter.writeCsv(f, results);
+                written.append(f).append('\n');
+            }
+            status.putString(REPORT_KEY_STREAMRESULT, "Wrote:\n" + written);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write results", e);
+            status.putString(REPORT_KEY_STREAMRESULT, "Failed to write results: " + e + "\n");
+            finish(Activity.RESULT_CANCELED, status);
+            return;
+        }
+
+        finish(Activity.RESULT_OK, status);
+    }
+
+    private void report(BenchmarkResult result) {
+        Log.i(TAG, result.toString());
+        Bundle progress = new Bundle();
+        progress.putString(REPORT_KEY_STREAMRESULT, result.toString() + "\n");
+        sendStatus(0, progress);
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        if (TextUtils.isEmpty(value)) return defaultValue;
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Bad number: " + value);
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,398 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.rpc_performance;
+
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Samples a subset of what procstatlog reads -- /proc/<pid>/stat for the
+ * processes involved in a benchmark, the global counters in binder's
+ * stats file, and cpufreq time_in_state for each frequency policy --
+ * from inside the app, so the numbers line up with benchmark phases.
+ *
+ * begin() opens the files and takes a snapshot, then a background thread
+ * samples every interval until end() takes the closing snapshot.  The
+ * files stay open and are re-read from offset 0 into one reused buffer
+ * and parsed in place, so sampling allocates nothing.  putMetrics()
+ * reports the deltas between the two snapshots, plus the busiest
+ * interval seen for each process.
+ *
+ * Files the app may not read (binder stats are root-only on many
+ * builds) are skipped and their metrics left out.
+ */
+public class ProcSampler {
+
+    private static final String TAG = "ProcSampler";
+
+    public static final long DEFAULT_INTERVAL_MILLIS = 50;
+
+    private static final String[] BINDER_STATS_PATHS = {
+        "/proc/binder/stats", "/sys/kernel/debug/binder/stats",
+    };
+    private static final String CPUFREQ_DIR = "/sys/devices/system/cpu/cpufreq";
+    private static final String CPU0_TIME_IN_STATE =
+            "/sys/devices/system/cpu/cpu0/cpufreq/stats/time_in_state";
+
+    // The first occurrence of each is in the global section at the top.
+    private static final byte[] BC_TRANSACTION = ascii("BC_TRANSACTION:");
+    private static final byte[] BC_REPLY = ascii("BC_REPLY:");
+
+    // /proc/<pid>/stat fields after the ")" closing the command name;
+    // utime and stime are fields 14 and 15 of the whole line.
+    private static final int UTIME_TOKEN = 11;
+
+    private static class Snapshot {
+        long timeNanos;
+        final long[] cpuTicks;
+        long binderTransactions;
+        long binderReplies;
+        final long[][] residency;  // 10 ms units, per policy and frequency
+
+        Snapshot(int pids, long[][] freqs) {
+            cpuTicks = new long[pids];
+            residency = new long[freqs.length][];
+            for (int p = 0; p < freqs.length; p++) {
+                residency[p] = new long[freqs[p].length];
+            }
+        }
+    }
+
+    private final long mIntervalMillis;
+    private final long mTicksPerSecond;
+    private final byte[] mBuf = new byte[16 * 1024];
+
+    // Set up by begin(); used by the sampling thread until end().
+    private String[] mLabels;
+    private RandomAccessFile[] mStatFiles;
+    private RandomAccessFile mBinderStats;
+    private String[] mPolicyNames;
+    private RandomAccessFile[] mPolicyFiles;
+    private long[][] mFreqs;  // kHz, per policy
+
+    private Snapshot mBegin;
+    private Snapshot mPrev;
+    private Snapshot mCur;
+    private Snapshot mEnd;
+    private double[] mPeakCpuPercent;
+    private int mSamples;
+
+    private Thread mThread;
+    private volatile boolean mRunning;
+
+    public ProcSampler() {
+        this(DEFAULT_INTERVAL_MILLIS);
+    }
+
+    public ProcSampler(long intervalMillis) {
+        mIntervalMillis = intervalMillis;
+        long hz = Os.sysconf(OsConstants._SC_CLK_TCK);
+        mTicksPerSecond = hz > 0 ? hz : 100;
+    }
+
+    /**
+     * Starts a phase covering the given processes, named by labels in the
+     * reported metrics.  Pids that are 0 or can't be read are skipped.
+     */
+    public synchronized void begin(int[] pids, String[] labels) {
+        ArrayList<String> names = new ArrayList<String>();
+        ArrayList<RandomAccessFile> files = new ArrayList<RandomAccessFile>();
+        for (int i = 0; i < pids.length; i++) {
+            if (pids[i] <= 0) continue;
+            RandomAccessFile f = open("/proc/" + pids[i] + "/stat");
+            if (f == null) continue;
+            names.add(labels[i]);
+            files.add(f);
+        }
+        mLabels = names.toArray(new String[names.size()]);
+        mStatFiles = files.toArray(new RandomAccessFile[files.size()]);
+
+        mBinderStats = null;
+        for (String path : BINDER_STATS_PATHS) {
+            mBinderStats = open(path);
+            if (mBinderStats != null) break;
+        }
+
+        openPolicies();
+
+        mBegin = new Snapshot(mStatFiles.length, mFreqs);
+        mPrev = new Snapshot(mStatFiles.length, mFreqs);
+        mCur = new Snapshot(mStatFiles.length, mFreqs);
+        mEnd = new Snapshot(mStatFiles.length, mFreqs);
+        mPeakCpuPercent = new double[mStatFiles.length];
+        mSamples = 0;
+
+        sample(mBegin);
+        copy(mBegin, mPrev);
+
+        mRunning = true;
+        mThread = new Thread("proc-sampler") {
+            @Override public void run() {
+                while (mRunning) {
+                    try {
+                        Thread.sleep(mIntervalMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    sampleInterval();
+                }
+            }
+        };
+        mThread.start();
+    }
+
+    /** Ends the phase started by begin(). */
+    public void end() {
+        mRunning = false;
+        mThread.interrupt();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            sample(mEnd);
+            closeAll();
+        }
+    }
+
+    /**
+     * Adds the phase's metrics to result: CPU ms and peak CPU % per
+     * process, binder transactions and replies, and average frequency per
+     * cpufreq policy.  With detailed, also the residency at every
+     * frequency that was used.
+     */
+    public synchronized void putMetrics(BenchmarkResult result, boolean detailed) {
+        for (int i = 0; i < mLabels.length; i++) {
+            long ticks = mEnd.cpuTicks[i] - mBegin.cpuTicks[i];
+            result.putMetric(mLabels[i] + "_cpu_ms", ticks * 1000.0 / mTicksPerSecond);
+            result.putMetric(mLabels[i] + "_cpu_peak_pct", mPeakCpuPercent[i]);
+        }
+        if (mBinderStats != null) {
+            result.putMetric("binder_transactions",
+                    mEnd.binderTransactions - mBegin.binderTransactions);
+            result.putMetric("binder_replies", mEnd.binderReplies - mBegin.binderReplies);
+        }
+        for (int p = 0; p < mFreqs.length; p++) {
+            long total = 0;
+            double weighted = 0;
+            for (int f = 0; f < mFreqs[p].length; f++) {
+                long d = mEnd.residency[p][f] - mBegin.residency[p][f];
+                total += d;
+                weighted += (double) d * mFreqs[p][f];
+            }
+            if (total <= 0) continue;
+            result.putMetric(mPolicyNames[p] + "_avg_mhz", weighted / total / 1000.0);
+            if (!detailed) continue;
+            for (int f = 0; f < mFreqs[p].length; f++) {
+                long d = mEnd.residency[p][f] - mBegin.residency[p][f];
+                if (d > 0) {
+                    result.putMetric(mPolicyNames[p] + "_" + (mFreqs[p][f] / 1000) + "mhz_pct",
+                            100.0 * d / total);
+                }
+            }
+        }
+        result.putMetric("proc_samples", mSamples);
+    }
+
+    private synchronized void sampleInterval() {
+        if (!mRunning) return;
+        sample(mCur);
+        mSamples++;
+        long elapsed = mCur.timeNanos - mPrev.timeNanos;
+        if (elapsed > 0) {
+            for (int i = 0; i < mPeakCpuPercent.length; i++) {
+                double pct = (mCur.cpuTicks[i] - mPrev.cpuTicks[i]) * 1e11
+                        / mTicksPerSecond / elapsed;
+                if (pct > mPeakCpuPercent[i]) mPeakCpuPercent[i] = pct;
+            }
+        }
+        Snapshot t = mPrev;
+        mPrev = mCur;
+        mCur = t;
+    }
+
+    private void sample(Snapshot s) {
+        s.timeNanos = System.nanoTime();
+        for (int i = 0; i < mStatFiles.length; i++) {
+            int len = read(mStatFiles[i]);
+            s.cpuTicks[i] = len > 0 ? parseCpuTicks(len) : s.cpuTicks[i];
+        }
+        if (mBinderStats != null) {
+            int len = read(mBinderStats);
+            s.binderTransactions = findCounter(len, BC_TRANSACTION);
+            s.binderReplies = findCounter(len, BC_REPLY);
+        }
+        for (int p = 0; p < mPolicyFiles.length; p++) {
+            parseResidency(read(mPolicyFiles[p]), s.residency[p]);
+        }
+    }
+
+    // Reads the whole file (or as much as fits) into mBuf.
+    private int read(RandomAccessFile f) {
+        try {
+            f.seek(0);
+            int total = 0;
+            int n;
+            while (total < mBuf.length && (n = f.read(mBuf, total, mBuf.length - total)) > 0) {
+                total += n;
+            }
+            return total;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private long parseCpuTicks(int len) {
+        int pos = len - 1;
+        while (pos >= 0 && mBuf[pos] != ')') pos--;
+        pos = skipTokens(pos + 1, len, UTIME_TOKEN);
+        long utime = parseLong(pos, len);
+        pos = skipTokens(pos, len, 1);
+        return utime + parseLong(pos, len);
+    }
+
+    private long findCounter(int len, byte[] key) {
+        outer:
+        for (int i = 0; i + key.length <= len; i++) {
+            for (int j = 0; j < key.length; j++) {
+                if (mBuf[i + j] != key[j]) continue outer;
+            }
+            return parseLong(i + key.length, len);
+        }
+        return 0;
+    }
+
+    // time_in_state is "<kHz> <10ms units>" per line, in a fixed order.
+    private void parseResidency(int len, long[] residency) {
+        int pos = 0;
+        for (int f = 0; f < residency.length && pos < len; f++) {
+            pos = skipTokens(pos, len, 1);
+            residency[f] = parseLong(pos, len);
+            pos = skipTokens(pos, len, 1);
+        }
+    }
+
+    // Returns the index just past count more whitespace-separated tokens.
+    private int skipTokens(int pos, int len, int count) {
+        for (int t = 0; t < count; t++) {
+            while (pos < len && isSpace(mBuf[pos])) pos++;
+            while (pos < len && !isSpace(mBuf[pos])) pos++;
+        }
+        return pos;
+    }
+
+    private long parseLong(int pos, int len) {
+        while (pos < len && isSpace(mBuf[pos])) pos++;
+        long value = 0;
+        while (pos < len && mBuf[pos] >= '0' && mBuf[pos] <= '9') {
+            value = value * 10 + (mBuf[pos++] - '0');
+        }
+        return value;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\n' || b == '\t';
+    }
+
+    // Uses one time_in_state per cpufreq policy where the kernel has them,
+    // else cpu0's, like procstatlog.
+    private void openPolicies() {
+        ArrayList<String> names = new ArrayList<String>();
+        ArrayList<RandomAccessFile> files = new ArrayList<RandomAccessFile>();
+        String[] policies = new File(CPUFREQ_DIR).list();
+        if (policies != null) {
+            Arrays.sort(policies);
+            for (String policy : policies) {
+                if (!policy.startsWith("policy")) continue;
+                RandomAccessFile f = open(CPUFREQ_DIR + "/" + policy + "/stats/time_in_state");
+                if (f == null) continue;
+                names.add(policy);
+                files.add(f);
+            }
+        }
+        if (files.isEmpty()) {
+            RandomAccessFile f = open(CPU0_TIME_IN_STATE);
+            if (f != null) {
+                names.add("cpu0");
+                files.add(f);
+            }
+        }
+        mPolicyNames = names.toArray(new String[names.size()]);
+        mPolicyFiles = files.toArray(new RandomAccessFile[files.size()]);
+
+        mFreqs = new long[mPolicyFiles.length][];
+        for (int p = 0; p < mPolicyFiles.length; p++) {
+            int len = read(mPolicyFiles[p]);
+            int lines = 0;
+            for (int i = 0; i < len; i++) {
+                if (mBuf[i] == '\n') lines++;
+            }
+            mFreqs[p] = new long[lines];
+            int pos = 0;
+            for (int f = 0; f < lines; f++) {
+                mFreqs[p][f] = parseLong(pos, len);
+                pos = skipTokens(pos, len, 2);
+            }
+        }
+    }
+
+    private static RandomAccessFile open(String path) {
+        try {
+            return new RandomAccessFile(path, "r");
+        } catch (IOException e) {
+            Log.v(TAG, "can't read " + path + ": " + e);
+            return null;
+        }
+    }
+
+    private void closeAll() {
+        for (RandomAccessFile f : mStatFiles) close(f);
+        for (RandomAccessFile f : mPolicyFiles) close(f);
+        close(mBinderStats);
+    }
+
+    private static void close(RandomAccessFile f) {
+        if (f == null) return;
+        try { f.close(); } catch (IOException e) {}
+    }
+
+    private static void copy(Snapshot from, Snapshot to) {
+        to.timeNanos = from.timeNanos;
+        System.arraycopy(from.cpuTicks, 0, to.cpuTicks, 0, from.cpuTicks.length);
+        to.binderTransactions = from.binderTransactions;
+        to.binderReplies = from.binderReplies;
+        for (int p = 0; p < from.residency.length; p++) {
+            System.arraycopy(from.residency[p], 0, to.residency[p], 0, from.residency[p].length);
+        }
+    }
+
+    private static byte[] ascii(String s) {
+        byte[] b = new byte[s.length()];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = (byte) s.charAt(i);
+        }
+        return b;
+    }
+}
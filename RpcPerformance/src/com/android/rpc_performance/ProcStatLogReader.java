@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.rpc_performance;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Reads procstatlog output one scan at a time, without loading the
+ * whole capture the way procstatreport.py does.  The format is a
+ * series of scans, each listing only what changed since the last:
+ *
+ *   T + <beforetime.stamp>
+ *   /proc/<new_filename> + <contents of newly discovered file>
+ *   /proc/<changed_filename> = <contents of changed file>
+ *   /proc/<deleted_filename> -
+ *   /proc/<filename>:<label> = <part of a multiline file>
+ *   T - <aftertime.stamp>
+ *
+ * The file is memory-mapped a window at a time, so a multi-hour capture
+ * costs no more heap than a short one: the reader keeps only the current
+ * value of each live series, and listeners see each change as it is
+ * read.  Like procstatreport.py, a scan's time is the midpoint of its
+ * two stamps, and a truncated last line is ignored.
+ *
+ * A name filter restricts the series that are decoded and tracked;
+ * lines for other series are skipped without creating any strings.
+ */
+public class ProcStatLogReader implements Closeable {
+
+    private static final long WINDOW_SIZE = 32L << 20;
+
+    /** Receives changes as scans are read. */
+    public interface Listener {
+        /** A series appeared (added) or changed value in the current scan. */
+        void onValue(String name, String value, boolean added);
+
+        /** A series went away, e.g. its process exited. */
+        void onRemoved(String name);
+
+        /** The current scan is complete; time is in seconds. */
+        void onScan(double time);
+    }
+
+    /** Walks the values of one series, one per scan it was present in. */
+    public static class Series implements Closeable {
+        private final ProcStatLogReader mReader;
+        private final String mName;
+
+        private Series(ProcStatLogReader reader, String name) {
+            mReader = reader;
+            mName = name;
+        }
+
+        /** Advances to the next scan containing the series. */
+        public boolean moveToNext() throws IOException {
+            while (mReader.nextScan()) {
+                if (mReader.getValue(mName) != null) return true;
+            }
+            return false;
+        }
+
+        public double getTime() {
+            return mReader.getScanTime();
+        }
+
+        public String getValue() {
+            return mReader.getValue(mName);
+        }
+
+        /** Returns the index'th whitespace-separated field of the value. */
+        public long getField(int index) {
+            return ProcStatLogReader.getField(getValue(), index);
+        }
+
+        public void close() throws IOException {
+            mReader.close();
+        }
+    }
+
+    private final FileInputStream mInput;
+    private final FileChannel mChannel;
+    private final long mSize;
+    private MappedByteBuffer mMap;
+    private long mMapOffset;
+    private int mPos;
+    private int mLineStart;
+    private int mLineEnd;
+
+    private byte[] mPrefix;
+    private byte[] mSuffix;
+    private boolean mExact;
+    private final HashMap<String, String> mValues = new HashMap<String, String>();
+    private final ArrayList<Listener> mListeners = new ArrayList<Listener>();
+    private double mScanTime;
+    private int mScans;
+
+    public ProcStatLogReader(File file) throws IOException {
+        mInput = new FileInputStream(file);
+        mChannel = mInput.getChannel();
+        mSize = mChannel.size();
+        map(0);
+    }
+
+    /** Opens file positioned before the first scan containing name. */
+    public static Series openSeries(File file, String name) throws IOException {
+        ProcStatLogReader reader = new ProcStatLogReader(file);
+        reader.setFilter(name, null);
+        reader.mExact = true;
+        return new Series(reader, name);
+    }
+
+    /**
+     * Only tracks series whose names start with prefix and end with
+     * suffix; either may be null.  Set before reading.
+     */
+    public void setFilter(String prefix, String suffix) {
+        mPrefix = prefix != null ? ascii(prefix) : null;
+        mSuffix = suffix != null ? ascii(suffix) : null;
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    /** Reads through the end of the next scan.  Returns false at EOF. */
+    public boolean nextScan() throws IOException {
+        double startTime = Double.NaN;
+        while (readLine()) {
+            int nameEnd = indexOf(' ', mLineStart, mLineEnd);
+            if (nameEnd < 0 || nameEnd + 1 >= mLineEnd) continue;
+            byte op = mMap.get(nameEnd + 1);
+
+            if (nameEnd - mLineStart == 1 && mMap.get(mLineStart) == 'T') {
+                double stamp = parseStamp(nameEnd + 3);
+                if (op == '+') {
+                    startTime = stamp;
+                } else if (op == '-') {
+                    mScanTime = Double.isNaN(startTime) ? stamp : (startTime + stamp) / 2.0;
+                    mScans++;
+                    for (Listener l : mListeners) l.onScan(mScanTime);
+                    return true;
+                }
+                continue;
+            }
+
+            if (!matches(mLineStart, nameEnd)) continue;
+            String name = decode(mLineStart, nameEnd);
+            if (op == '-') {
+                if (mValues.remove(name) != null) {
+                    for (Listener l : mListeners) l.onRemoved(name);
+                }
+            } else if (op == '+' || op == '=') {
+                String value = decode(nameEnd + 3, mLineEnd).trim();
+                boolean added = mValues.put(name, value) == null;
+                for (Listener l : mListeners) l.onValue(name, value, added);
+            }
+        }
+        return false;
+    }
+
+    /** Reads all remaining scans, for use with listeners. */
+    public void readAll() throws IOException {
+        while (nextScan()) {}
+    }
+
+    /** Time of the last scan read, in seconds since the epoch. */
+    public double getScanTime() {
+        return mScanTime;
+    }
+
+    public int getScanCount() {
+        return mScans;
+    }
+
+    /** The current value of a series, or null if it isn't live. */
+    public String getValue(String name) {
+        return mValues.get(name);
+    }
+
+    public int getSeriesCount() {
+        return mValues.size();
+    }
+
+    public void close() throws IOException {
+        mMap = null;
+        mInput.close();
+    }
+
+    /**
+     * Returns the index'th whitespace-separated field of value as a
+     * number, or 0 if it is missing or not a number.
+     */
+    public static long getField(String value, int index) {
+        if (value == null) return 0;
+        int len = value.length();
+        int pos = 0;
+        for (int field = 0; pos < len; field++) {
+            while (pos < len && value.charAt(pos) == ' ') pos++;
+            int start = pos;
+            while (pos < len && value.charAt(pos) != ' ') pos++;
+            if (field == index) {
+                long n = 0;
+                for (int i = start; i < pos; i++) {
+                    char c = value.charAt(i);
+                    if (c < '0' || c > '9') return 0;
+                    n = n * 10 + (c - '0');
+                }
+                return n;
+            }
+        }
+        return 0;
+    }
+
+    // Sets mLineStart/mLineEnd to the next complete line, remapping when
+    // it runs past the current window.
+    private boolean readLine() throws IOException {
+        while (true) {
+            int limit = mMap.limit();
+            int end = indexOf('\n', mPos, limit);
+            if (end >= 0) {
+                mLineStart = mPos;
+                mLineEnd = end;
+                mPos = end + 1;
+                return true;
+            }
+            if (mMapOffset + limit >= mSize) return false;  // truncated last line
+            if (mPos == 0) throw new IOException("Line too long at offset " + mMapOffset);
+            map(mMapOffset + mPos);
+        }
+    }
+
+    private void map(long offset) throws IOException {
+        mMapOffset = offset;
+        mMap = mChannel.map(FileChannel.MapMode.READ_ONLY, offset,
+                Math.min(WINDOW_SIZE, mSize - offset));
+        mPos = 0;
+    }
+
+    private int indexOf(char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (mMap.get(i) == c) return i;
+        }
+        return -1;
+    }
+
+    private boolean matches(int start, int end) {
+        int len = end - start;
+        if (mExact && len != mPrefix.length) return false;
+        if (mPrefix != null) {
+            if (len < mPrefix.length) return false;
+            for (int i = 0; i < mPrefix.length; i++) {
+                if (mMap.get(start + i) != mPrefix[i]) return false;
+            }
+        }
+        if (mSuffix != null) {
+            if (len < mSuffix.length) return false;
+            for (int i = 0; i < mSuffix.length; i++) {
+                if (mMap.get(end - mSuffix.length + i) != mSuffix[i]) return false;
+            }
+        }
+        return true;
+    }
+
+    private String decode(int start, int end) {
+        char[] chars = new char[Math.max(0, end - start)];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) (mMap.get(start + i) & 0xff);
+        }
+        return new String(chars);
+    }
+
+    // Parses "<sec>.<usec>" as written by procstatlog.
+    private double parseStamp(int pos) {
+        long sec = 0;
+        while (pos < mLineEnd && isDigit(mMap.get(pos))) {
+            sec = sec * 10 + (mMap.get(pos++) - '0');
+        }
+        double frac = 0;
+        double scale = 0.1;
+        if (pos < mLineEnd && mMap.get(pos) == '.') {
+            for (pos++; pos < mLineEnd && isDigit(mMap.get(pos)); pos++) {
+                frac += (mMap.get(pos) - '0') * scale;
+                scale /= 10;
+            }
+        }
+        return sec + frac;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private static byte[] ascii(String s) {
+        byte[] b = new byte[s.length()];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = (byte) s.charAt(i);
+        }
+        return b;
+    }
+}
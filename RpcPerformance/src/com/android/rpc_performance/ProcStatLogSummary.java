@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.rpc_performance;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Rolling aggregates over a procstatlog capture, fed scan by scan by a
+ * ProcStatLogReader: CPU jiffies per process (summed by process name,
+ * since pids come and go) and sectors read and written per disk, each
+ * with totals, the busiest single interval, and a mean over the last
+ * few intervals.  Memory grows with the number of distinct processes
+ * and disks, not with the length of the capture.
+ *
+ * Processes already running when the capture starts are counted from
+ * their first sample; ones that start later are counted from zero, as
+ * procstatreport.py does.
+ */
+public class ProcStatLogSummary implements ProcStatLogReader.Listener {
+
+    public static final int DEFAULT_WINDOW = 10;
+
+    private static final String DISK_PREFIX = "/proc/diskstats:";
+
+    // Fields of a diskstats value (after the device name).
+    private static final int DISK_SECTORS_READ = 2;
+    private static final int DISK_SECTORS_WRITTEN = 6;
+
+    // Fields of /proc/<pid>/stat after the ")" closing the command name.
+    private static final int STAT_UTIME = 11;
+    private static final int STAT_STIME = 12;
+
+    /** Sum and mean of the last few values added. */
+    public static class Rolling {
+        private final long[] mRing;
+        private int mNext;
+        private int mCount;
+        private long mSum;
+
+        public Rolling(int size) {
+            mRing = new long[size];
+        }
+
+        public void add(long value) {
+            mSum += value - mRing[mNext];
+            mRing[mNext] = value;
+            mNext = (mNext + 1) % mRing.length;
+            if (mCount < mRing.length) mCount++;
+        }
+
+        public long getSum() {
+            return mSum;
+        }
+
+        public double getMean() {
+            return mCount > 0 ? (double) mSum / mCount : 0;
+        }
+    }
+
+    /** CPU use of every process that had a given name. */
+    public static class ProcessCpu {
+        public final String name;
+        public long totalJiffies;
+        public long maxIntervalJiffies;
+        public int processes;
+        long interval;
+
+        ProcessCpu(String name) {
+            this.name = name;
+        }
+    }
+
+    /** Sectors transferred by one disk. */
+    public static class DiskSectors {
+        public final String device;
+        public long totalRead;
+        public long totalWritten;
+        public long maxIntervalRead;
+        public long maxIntervalWritten;
+        public final Rolling recentRead;
+        public final Rolling recentWritten;
+        long lastRead = -1;
+        long lastWritten = -1;
+        long intervalRead;
+        long intervalWritten;
+
+        DiskSectors(String device, int window) {
+            this.device = device;
+            recentRead = new Rolling(window);
+            recentWritten = new Rolling(window);
+        }
+    }
+
+    private final int mWindow;
+    private final HashMap<String, Long> mLastJiffies = new HashMap<String, Long>();
+    private final HashMap<String, String> mProcessNames = new HashMap<String, String>();
+    private final HashMap<String, ProcessCpu> mCpu = new HashMap<String, ProcessCpu>();
+    private final HashMap<String, DiskSectors> mDisks = new HashMap<String, DiskSectors>();
+    private final Rolling mRecentCpu;
+    private long mIntervalCpu;
+    private int mScans;
+    private double mFirstTime;
+    private double mLastTime;
+
+    public ProcStatLogSummary() {
+        this(DEFAULT_WINDOW);
+    }
+
+    /** window is the number of intervals the rolling means cover. */
+    public ProcStatLogSummary(int window) {
+        mWindow = window;
+        mRecentCpu = new Rolling(window);
+    }
+
+    /** Reads the whole of file into a new summary. */
+    public static ProcStatLogSummary summarize(File file) throws IOException {
+        ProcStatLogSummary summary = new ProcStatLogSummary();
+        ProcStatLogReader reader = new ProcStatLogReader(file);
+        try {
+            reader.setFilter("/proc/", null);
+            reader.addListener(summary);
+            reader.readAll();
+        } finally {
+            reader.close();
+        }
+        return summary;
+    }
+
+    public void onValue(String name, String value, boolean added) {
+        if (name.startsWith(DISK_PREFIX)) {
+            onDiskValue(name.substring(DISK_PREFIX.length()), value);
+        } else if (isProcessStat(name)) {
+            onStatValue(name, value);
+        }
+    }
+
+    public void onRemoved(String name) {
+        mLastJiffies.remove(name);
+        mProcessNames.remove(name);
+    }
+
+    public void onScan(double time) {
+        if (mScans == 0) mFirstTime = time;
+        mLastTime = time;
+        mScans++;
+
+        mRecentCpu.add(mIntervalCpu);
+        mIntervalCpu = 0;
+        for (ProcessCpu cpu : mCpu.values()) {
+            if (cpu.interval > cpu.maxIntervalJiffies) cpu.maxIntervalJiffies = cpu.interval;
+            cpu.interval = 0;
+        }
+        for (DiskSectors disk : mDisks.values()) {
+            if (disk.intervalRead > disk.maxIntervalRead) {
+                disk.maxIntervalRead = disk.intervalRead;
+            }
+            if (disk.intervalWritten > disk.maxIntervalWritten) {
+                disk.maxIntervalWritten = disk.intervalWritten;
+            }
+            disk.recentRead.add(disk.intervalRead);
+            disk.recentWritten.add(disk.intervalWritten);
+            disk.intervalRead = 0;
+            disk.intervalWritten = 0;
+        }
+    }
+
+    private void onStatValue(String name, String value) {
+        int close = value.lastIndexOf(')');
+        int open = value.indexOf('(');
+        if (close < 0 || open < 0 || open > close) return;
+        String tail = value.substring(close + 1);
+        long jiffies = ProcStatLogReader.getField(tail, STAT_UTIME)
+                + ProcStatLogReader.getField(tail, STAT_STIME);
+
+        Long last = mLastJiffies.put(name, jiffies);
+        // Processes present in the first scan were already running.
+        if (last == null && mScans == 0) return;
+        long delta = jiffies - (last != null ? last : 0);
+        if (delta <= 0) return;
+
+        String processName = value.substring(open + 1, close);
+        ProcessCpu cpu = mCpu.get(processName);
+        if (cpu == null) {
+            cpu = new ProcessCpu(processName);
+            mCpu.put(processName, cpu);
+        }
+        if (!processName.equals(mProcessNames.put(name, processName))) cpu.processes++;
+        cpu.totalJiffies += delta;
+        cpu.interval += delta;
+        mIntervalCpu += delta;
+    }
+
+    private void onDiskValue(String device, String value) {
+        DiskSectors disk = mDisks.get(device);
+        if (disk == null) {
+            disk = new DiskSectors(device, mWindow);
+            mDisks.put(device, disk);
+        }
+        long read = ProcStatLogReader.getField(value, DISK_SECTORS_READ);
+        long written = ProcStatLogReader.getField(value, DISK_SECTORS_WRITTEN);
+        if (disk.lastRead >= 0 && read >= disk.lastRead && written >= disk.lastWritten) {
+            disk.totalRead += read - disk.lastRead;
+            disk.totalWritten += written - disk.lastWritten;
+            disk.intervalRead += read - disk.lastRead;
+            disk.intervalWritten += written - disk.lastWritten;
+        }
+        disk.lastRead = read;
+        disk.lastWritten = written;
+    }
+
+    // "/proc/<pid>/stat"
+    private static boolean isProcessStat(String name) {
+        if (!name.endsWith("/stat")) return false;
+        int end = name.length() - "/stat".length();
+        if (end <= "/proc/".length()) return false;
+        for (int i = "/proc/".length(); i < end; i++) {
+            char c = name.charAt(i);
+            if (c < '0' || c > '9') return false;
+        }
+        return true;
+    }
+
+    public int getScanCount() {
+        return mScans;
+    }
+
+    /** Seconds between the first and last scans. */
+    public double getDuration() {
+        return mLastTime - mFirstTime;
+    }
+
+    /** CPU jiffies of all processes over the last window intervals. */
+    public Rolling getRecentCpu() {
+        return mRecentCpu;
+    }
+
+    /** Processes by name, busiest first. */
+    public List<ProcessCpu> getProcessCpu() {
+        ArrayList<ProcessCpu> list = new ArrayList<ProcessCpu>(mCpu.values());
+        Collections.sort(list, new Comparator<ProcessCpu>() {
+            public int compare(ProcessCpu a, ProcessCpu b) {
+                return a.totalJiffies < b.totalJiffies ? 1
+                        : a.totalJiffies > b.totalJiffies ? -1 : a.name.compareTo(b.name);
+            }
+        });
+        return list;
+    }
+
+    public List<DiskSectors> getDiskSectors() {
+        ArrayList<DiskSectors> list = new ArrayList<DiskSectors>(mDisks.values());
+        Collections.sort(list, new Comparator<DiskSectors>() {
+            public int compare(DiskSectors a, DiskSectors b) {
+                return a.device.compareTo(b.device);
+            }
+        });
+        return list;
+    }
+
+    /** A short report: the top processes by CPU, then every busy disk. */
+    public String toReportString(int maxProcesses) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(mScans).append(" scans over ").append((float) getDuration()).append(" s\n");
+        int shown = 0;
+        for (ProcessCpu cpu : getProcessCpu()) {
+            if (shown++ >= maxProcesses || cpu.totalJiffies == 0) break;
+            sb.append(cpu.name).append(": ").append(cpu.totalJiffies).append(" jiffies");
+            if (cpu.processes > 1) sb.append(" in ").append(cpu.processes).append(" processes");
+            sb.append(", max ").append(cpu.maxIntervalJiffies).append("/interval\n");
+        }
+        for (DiskSectors disk : getDiskSectors()) {
+            if (disk.totalRead == 0 && disk.totalWritten == 0) continue;
+            sb.append(disk.device).append(": ").append(disk.totalRead).append(" sectors read")
+                    .append(" (max ").append(disk.maxIntervalRead).append("/interval), ")
+                    .append(disk.totalWritten).append(" written")
+                    .append(" (max ").append(disk.maxIntervalWritten).append("/interval)\n");
+        }
+        return sb.toString();
+    }
+}
@@ -17,13 +17,25 @@
 package com.android.rpc_performance;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.Process;
+
+import java.util.ArrayList;
 
 public class Provider extends ContentProvider {
 
+    public static final String METHOD_GET_PID = "getPid";
+    public static final String KEY_PID = "pid";
+    public static final String METHOD_GET_BINDER = "getBinder";
+    public static final String KEY_BINDER = "binder";
+
     public boolean onCreate() {
         return true;
     }
@@ -31,13 +43,36 @@ public class Provider extends ContentProvider {
     public Cursor query(Uri uri, String[] projection,
                         String selection, String[] selectionArgs,
                         String sortOrder) {
+        // Callers that want a bigger result set describe it on the URI.
+        Cursor synthetic = SyntheticCursor.fromUri(uri);
+        if (synthetic != null) return synthetic;
+
         MatrixCursor c = new MatrixCursor(new String[]{"value"}, 1);
         c.addRow(new String[]{"my_value"});
         return c;
     }
 
+    // Returns the URI it was given: ContentProviderOperation treats a null
+    // insert result as a failure, which would abort applyBatch().
     public Uri insert(Uri uri, ContentValues values) {
-        return null;
+        return uri;
+    }
+
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        for (ContentValues v : values) {
+            insert(uri, v);
+        }
+        return values.length;
+    }
+
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final int count = operations.size();
+        ContentProviderResult[] results = new ContentProviderResult[count];
+        for (int i = 0; i < count; i++) {
+            results[i] = operations.get(i).apply(this, results, i);
+        }
+        return results;
     }
 
     public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
@@ -51,4 +86,25 @@ public class Provider extends ContentProvider {
     public String getType(Uri uri) {
         return "text/plain";
     }
+
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (METHOD_GET_PID.equals(method)) {
+            Bundle b = new Bundle();
+            b.putInt(KEY_PID, Process.myPid());
+            return b;
+        }
+        if (METHOD_GET_BINDER.equals(method)) {
+            Bundle b = new Bundle();
+            b.putBinder(KEY_BINDER, mBinder);
+            return b;
+        }
+        return null;
+    }
+
+    // Lets callers compare a custom AIDL interface with query() and call()
+    // on the same provider, in the same process.
+    private final IProviderPing.Stub mBinder = new IProviderPing.Stub() {
+        public void pingVoid() {
+        }
+    };
 }
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.rpc_performance;
+
+import android.content.ContentProviderClient;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the same no-op request four ways against the same provider
+ * class, in this process (LocalProvider) and in its own (Provider):
+ *
+ *   query   query() and read the one row
+ *   call    call() of a method the provider ignores
+ *   insert  insert() of one small row
+ *   aidl    IProviderPing.pingVoid() on a binder fetched with call(getBinder)
+ *
+ * and three ways of getting hold of the provider:
+ *
+ *   warm      one ContentProviderClient held for the whole run
+ *   per_call  acquire and release a client around every request, as
+ *             ContentResolver.query() and friends do
+ *   cold      like per_call, but pausing after each release for longer
+ *             than ActivityThread retains an unused provider, so the
+ *             reference is dropped and the next acquire has to go back to
+ *             the ActivityManager.  Providers running in this process are
+ *             never dropped, so local cold matches per_call.
+ *
+ * For aidl, per_call and cold fetch the binder again every time.  Each
+ * sample is a whole request including any acquire and release; the
+ * acquire_us, op_us and release_us metrics break it down.
+ */
+public class ProviderMatrixBenchmark {
+
+    private static final String TAG = "ProviderMatrixBenchmark";
+
+    public static final String[] OPERATIONS = {"query", "call", "insert", "aidl"};
+    public static final String[] MODES = {"warm", "per_call", "cold"};
+
+    // ActivityThread keeps an unreferenced provider for
+    // CONTENT_PROVIDER_RETAIN_TIME (1000 ms) before releasing it, so wait
+    // that out plus time for the main thread to handle the removal.
+    private static final long COLD_SETTLE_MILLIS = 1500;
+    private static final int COLD_MAX_REPS = 10;
+
+    private static final String[] IGNORED_COLUMN = {"ignored"};
+    private static final String NOOP_METHOD = "noop";
+
+    private final BenchmarkLoops mLoops;
+    private final ContentResolver mResolver;
+    private final ContentValues mValues = new ContentValues();
+
+    public ProviderMatrixBenchmark(BenchmarkLoops loops) {
+        mLoops = loops;
+        mResolver = loops.getContentResolver();
+        mValues.put("name", "value");
+    }
+
+    public List<BenchmarkResult> run() throws InterruptedException {
+        ArrayList<BenchmarkResult> results = new ArrayList<BenchmarkResult>();
+        Uri[] uris = {BenchmarkLoops.IN_PROC_PROVIDER_URI, BenchmarkLoops.CROSS_PROC_PROVIDER_URI};
+        String[] targets = {"local", "remote"};
+        for (String op : OPERATIONS) {
+            for (int t = 0; t < uris.length; t++) {
+                for (String mode : MODES) {
+                    results.add(runPoint(op, uris[t], targets[t], mode));
+                }
+            }
+        }
+        return results;
+    }
+
+    private BenchmarkResult runPoint(String op, Uri uri, String target, String mode)
+            throws InterruptedException {
+        String name = "provider_matrix/" + op + "/" + target + "/" + mode;
+        LatencyHistogram histogram = new LatencyHistogram();
+        boolean warm = "warm".equals(mode);
+        boolean cold = "cold".equals(mode);
+        int reps = cold ? Math.min(mLoops.getIterations(), COLD_MAX_REPS) : mLoops.getIterations();
+        long acquireNanos = 0;
+        long opNanos = 0;
+        long releaseNanos = 0;
+
+        AllocationCounter allocs = new AllocationCounter();
+        int allocReps = 0;
+        ContentProviderClient held = null;
+        IProviderPing heldService = null;
+        try {
+            if (warm) {
+                held = mResolver.acquireContentProviderClient(uri.getAuthority());
+                if (held == null) return failed(name, histogram, "no provider");
+                if ("aidl".equals(op)) {
+                    heldService = getService(held);
+                    if (heldService == null) return failed(name, histogram, "no binder");
+                }
+            }
+
+            long loopStart = System.nanoTime();
+            for (int i = 0; i < reps && mLoops.withinBudget(loopStart); i++) {
+                long start = System.nanoTime();
+                ContentProviderClient client = held;
+                if (!warm) {
+                    client = mResolver.acquireContentProviderClient(uri.getAuthority());
+                    if (client == null) return failed(name, histogram, "no provider");
+                }
+                long acquired = System.nanoTime();
+
+                boolean ok;
+                long done;
+                try {
+                    ok = runOperation(op, uri, client, heldService);
+                    done = System.nanoTime();
+                } finally {
+                    if (!warm) client.release();
+                }
+                long end = System.nanoTime();
+                if (!ok) return failed(name, histogram, "request failed");
+
+                histogram.recordValue(end - start);
+                acquireNanos += acquired - start;
+                opNanos += done - acquired;
+                releaseNanos += end - done;
+
+                if (cold) Thread.sleep(COLD_SETTLE_MILLIS);
+            }
+
+            // Cold points would spend most of an untimed pass waiting for
+            // the provider to go away, so only the others are counted.
+            if (!cold) {
+                allocReps = (int) Math.min(histogram.getCount(),
+                        AllocationCounter.ALLOC_PASS_ITERATIONS);
+                allocs.start();
+                try {
+                    for (int i = 0; i < allocReps; i++) {
+                        ContentProviderClient client = held;
+                        if (!warm) {
+                            client = mResolver.acquireContentProviderClient(uri.getAuthority());
+                            if (client == null) return failed(name, histogram, "no provider");
+                        }
+                        try {
+                            runOperation(op, uri, client, heldService);
+                        } finally {
+                            if (!warm) client.release();
+                        }
+                    }
+                } finally {
+                    allocs.stop();
+                }
+            }
+        } catch (RemoteException e) {
+            Log.e(TAG, name + " failed", e);
+            return new BenchmarkResult(name, -999, histogram);
+        } finally {
+            if (held != null) held.release();
+        }
+
+        BenchmarkResult result = new BenchmarkResult(name, histogram.getMeanMillis(), histogram);
+        long count = histogram.getCount();
+        if (count > 0) {
+            result.putMetric("acquire_us", acquireNanos / 1000.0 / count);
+            result.putMetric("op_us", opNanos / 1000.0 / count);
+            result.putMetric("release_us", releaseNanos / 1000.0 / count);
+        }
+        allocs.putAllocationMetrics(result, allocReps);
+        Log.v(TAG, result.toString());
+        return result;
+    }
+
+    private boolean runOperation(String op, Uri uri, ContentProviderClient client,
+                                 IProviderPing service) throws RemoteException {
+        if ("query".equals(op)) {
+            Cursor c = client.query(uri, IGNORED_COLUMN, "name=?", IGNORED_COLUMN, null);
+            if (c == null) return false;
+            try {
+                return c.moveToNext() && c.getString(0) != null;
+            } finally {
+                c.close();
+            }
+        }
+        if ("call".equals(op)) {
+            client.call(NOOP_METHOD, null, null);
+            return true;
+        }
+        if ("insert".equals(op)) {
+            return client.insert(uri, mValues) != null;
+        }
+        if (service == null) service = getService(client);
+        if (service == null) return false;
+        service.pingVoid();
+        return true;
+    }
+
+    private static IProviderPing getService(ContentProviderClient client) throws RemoteException {
+        Bundle b = client.call(Provider.METHOD_GET_BINDER, null, null);
+        IBinder binder = b != null ? b.getBinder(Provider.KEY_BINDER) : null;
+        return binder != null ? IProviderPing.Stub.asInterface(binder) : null;
+    }
+
+    private static BenchmarkResult failed(String name, LatencyHistogram histogram,
+                                          String why) {
+        Log.w(TAG, name + ": " + why);
+        return new BenchmarkResult(name, -999, histogram);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.rpc_performance;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.IBinder;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Owns the binding to MiscService on behalf of a BenchmarkLoops, keeping
+ * its service stub current, and can kill and respawn the remote
+ * (:rpcperfservice and :rpcperfprovider) processes so that each benchmark
+ * trial starts from a fresh process.
+ */
+public class RemoteServiceController {
+
+    private static final String TAG = "RemoteServiceController";
+
+    private final Context mContext;
+    private final BenchmarkLoops mLoops;
+
+    private boolean mBound = false;
+    private volatile CountDownLatch mConnected = new CountDownLatch(1);
+
+    private final ServiceConnection mConnection = new ServiceConnection() {
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            mLoops.setServiceStub(IService.Stub.asInterface(service));
+            mConnected.countDown();
+            Log.v(TAG, "Service bound");
+        }
+
+        public void onServiceDisconnected(ComponentName name) {
+            mLoops.setServiceStub(null);
+            Log.v(TAG, "Service unbound");
+        }
+    };
+
+    public RemoteServiceController(Context context, BenchmarkLoops loops) {
+        mContext = context;
+        mLoops = loops;
+    }
+
+    public synchronized void bind() {
+        if (mBound) return;
+        mConnected = new CountDownLatch(1);
+        mContext.bindService(new Intent(mContext, MiscService.class),
+                             mConnection, Context.BIND_AUTO_CREATE);
+        mBound = true;
+    }
+
+    public synchronized void unbind() {
+        if (!mBound) return;
+        mContext.unbindService(mConnection);
+        mLoops.setServiceStub(null);
+        mBound = false;
+    }
+
+    /** Waits for the service stub to be available; returns false on timeout. */
+    public boolean awaitConnected(long timeoutMillis) throws InterruptedException {
+        return mConnected.await(timeoutMillis, TimeUnit.MILLISECONDS)
+                && mLoops.getServiceStub() != null;
+    }
+
+    /**
+     * Kills the remote service and no-op provider processes and rebinds,
+     * so the next loop runs against freshly started processes.  Must not
+     * be called on the main thread.  Returns false if the service did not
+     * come back within timeoutMillis.
+     */
+    public boolean restartRemoteProcesses(long timeoutMillis) throws InterruptedException {
+        IService stub = mLoops.getServiceStub();
+        int servicePid = mLoops.getServicePid();
+        int providerPid = mLoops.getProviderPid();
+
+        unbind();
+        if (servicePid > 0 && servicePid != Process.myPid()) {
+            Process.killProcess(servicePid);
+            awaitDeath(stub.asBinder(), timeoutMillis);
+        }
+        if (providerPid > 0 && providerPid != Process.myPid()) {
+            Process.killProcess(providerPid);
+        }
+        Log.v(TAG, "Killed service pid " + servicePid + ", provider pid " + providerPid);
+
+        bind();
+        return awaitConnected(timeoutMillis);
+    }
+
+    // Rebinding while the system still thinks the old process is alive
+    // would just hand back the dying binder, so wait for it to go away.
+    private static void awaitDeath(IBinder binder, long timeoutMillis)
+            throws InterruptedException {
+        long deadline = SystemClock.uptimeMillis() + timeoutMillis;
+        while (binder.pingBinder() && SystemClock.uptimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.rpc_performance;
+
+/**
+ * Decides whether a candidate run of a benchmark is slower than a
+ * baseline run, using a one-sided Mann-Whitney U test on their samples.
+ * Unlike comparing means, the test doesn't assume normal latencies and
+ * isn't thrown by a few outliers.
+ *
+ * The samples come from LatencyHistograms, so values in the same bucket
+ * (under 1% apart) count as ties; that only makes the test slightly more
+ * conservative.  With thousands of samples a tiny shift can still be
+ * significant, so a regression also has to move the median by at least
+ * a minimum fraction.
+ */
+public class ResultComparator {
+
+    private double mAlpha = 0.01;
+    private double mMinMedianChange = 0.02;
+
+    /** Significance level; a candidate is slower if p is below this. */
+    public void setAlpha(double alpha) {
+        mAlpha = alpha;
+    }
+
+    /** Smallest median slowdown worth flagging, e.g. 0.02 for 2%. */
+    public void setMinMedianChange(double fraction) {
+        mMinMedianChange = fraction;
+    }
+
+    /** The outcome of comparing one candidate with its baseline. */
+    public static class Comparison {
+        public final String name;
+        /** Probability that a candidate sample is slower than a baseline one. */
+        public final double probSlower;
+        public final double z;
+        /** One-sided p-value for "the candidate is slower". */
+        public final double p;
+        /** Candidate median / baseline median - 1. */
+        public final double medianChange;
+        public final boolean regression;
+
+        Comparison(String name, double probSlower, double z, double p,
+                   double medianChange, boolean regression) {
+            this.name = name;
+            this.probSlower = probSlower;
+            this.z = z;
+            this.p = p;
+            this.medianChange = medianChange;
+            this.regression = regression;
+        }
+
+        @Override public String toString() {
+            return (regression ? "REGRESSION " : "") + name + ": median "
+                    + (medianChange >= 0 ? "+" : "") + (float) (medianChange * 100) + "%"
+                    + ", p=" + (float) p;
+        }
+    }
+
+    /** Returns null if either side has no samples. */
+    public Comparison compare(String name, LatencyHistogram baseline,
+                              LatencyHistogram candidate) {
+        double n1 = baseline.getCount();
+        double n2 = candidate.getCount();
+        if (n1 == 0 || n2 == 0) return null;
+
+        // Rank the pooled samples bucket by bucket; each bucket is one
+        // group of ties sharing the mean of its ranks.
+        double rankSum = 0;
+        double tieTerm = 0;
+        double ranked = 0;
+        int buckets = LatencyHistogram.getBucketCount();
+        for (int i = 0; i < buckets; i++) {
+            long c1 = baseline.getCountAtBucket(i);
+            long c2 = candidate.getCountAtBucket(i);
+            double t = c1 + c2;
+            if (t == 0) continue;
+            rankSum += c2 * (ranked + (t + 1) / 2.0);
+            tieTerm += t * t * t - t;
+            ranked += t;
+        }
+
+        double n = n1 + n2;
+        double u = rankSum - n2 * (n2 + 1) / 2.0;
+        double mean = n1 * n2 / 2.0;
+        double variance = n1 * n2 / 12.0 * ((n + 1) - tieTerm / (n * (n - 1)));
+        double z = variance > 0 ? (u - mean - 0.5) / Math.sqrt(variance) : 0;
+        double p = variance > 0 ? upperTail(z) : 1.0;
+
+        double baseMedian = baseline.getValueAtPercentile(50.0);
+        double medianChange = baseMedian > 0
+                ? candidate.getValueAtPercentile(50.0) / baseMedian - 1.0 : 0;
+        boolean regression = p < mAlpha && medianChange >= mMinMedianChange;
+        return new Comparison(name, u / (n1 * n2), z, p, medianChange, regression);
+    }
+
+    // P(Z > z) for a standard normal, via the complementary error
+    // function (Abramowitz and Stegun 7.1.26, error below 1.5e-7).
+    static double upperTail(double z) {
+        double x = Math.abs(z) / Math.sqrt(2.0);
+        double t = 1.0 / (1.0 + 0.3275911 * x);
+        double erfc = t * (0.254829592 + t * (-0.284496736 + t * (1.421413741
+                + t * (-1.453152027 + t * 1.061405429)))) * Math.exp(-x * x);
+        return z >= 0 ? erfc / 2.0 : 1.0 - erfc / 2.0;
+    }
+}
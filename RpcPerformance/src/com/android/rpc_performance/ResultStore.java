@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.rpc_performance;
+
+import android.os.Build;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Append-only history of every result this app has produced, one line per
+ * result, so runs on different builds can be compared later.
+ *
+ * Each line is tab-separated: timestamp (ms), build fingerprint, result
+ * name, average (ms), metrics as "key=value" pairs joined by ';', and the
+ * histogram as produced by {@link LatencyHistogram#encode}.  All results
+ * appended together share one timestamp, which identifies the run.
+ * Lines that don't parse are skipped on load.
+ */
+public class ResultStore {
+
+    private static final String TAG = "ResultStore";
+
+    public static final String DEFAULT_FILE_NAME = "rpcperf-history.tsv";
+
+    /** One line of the store. */
+    public static class Entry {
+        public final long timestampMillis;
+        public final String fingerprint;
+        public final BenchmarkResult result;
+
+        Entry(long timestampMillis, String fingerprint, BenchmarkResult result) {
+            this.timestampMillis = timestampMillis;
+            this.fingerprint = fingerprint;
+            this.result = result;
+        }
+    }
+
+    private final File mFile;
+
+    public ResultStore(File file) {
+        mFile = file;
+    }
+
+    /** Appends results as one run on this build, stamped now. */
+    public void append(List<BenchmarkResult> results) throws IOException {
+        append(results, Build.FINGERPRINT, System.currentTimeMillis());
+    }
+
+    public synchronized void append(List<BenchmarkResult> results, String fingerprint,
+                                    long timestampMillis) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (BenchmarkResult r : results) {
+            sb.append(timestampMillis).append('\t');
+            sb.append(fingerprint).append('\t');
+            sb.append(r.name).append('\t');
+            sb.append(r.avgMillis).append('\t');
+            sb.append(r.metricsString(";")).append('\t');
+            sb.append(r.histogram.encode()).append('\n');
+        }
+        Writer w = new OutputStreamWriter(new FileOutputStream(mFile, true), "UTF-8");
+        try {
+            w.write(sb.toString());
+        } finally {
+            w.close();
+        }
+    }
+
+    /**
+     * Returns every stored result, oldest first.  Each one holds a full
+     * histogram, so prefer {@link #findPrevious} on a long history.
+     */
+    public List<Entry> load() throws IOException {
+        final ArrayList<Entry> entries = new ArrayList<Entry>();
+        scan(new LineVisitor() {
+            public void visit(long timestampMillis, String name, String line) {
+                Entry entry = parse(line);
+                if (entry != null) entries.add(entry);
+            }
+        });
+        return entries;
+    }
+
+    /**
+     * Compares each result with the latest stored result of the same name,
+     * attaching the outcome as metrics (median change in percent, p-value,
+     * and regression=1 when flagged), then appends the results as a new
+     * run.  Returns the comparisons that flagged a regression.
+     */
+    public List<ResultComparator.Comparison> record(List<BenchmarkResult> results,
+                                                    ResultComparator comparator)
+            throws IOException {
+        ArrayList<ResultComparator.Comparison> regressions =
+                new ArrayList<ResultComparator.Comparison>();
+        long now = System.currentTimeMillis();
+        HashSet<String> names = new HashSet<String>();
+        for (BenchmarkResult r : results) {
+            names.add(r.name);
+        }
+        HashMap<String, String> previousLines = findPreviousLines(names, now);
+
+        for (BenchmarkResult r : results) {
+            if (r.isFailure()) continue;
+            String line = previousLines.get(r.name);
+            Entry previous = line != null ? parse(line) : null;
+            if (previous == null || previous.result.isFailure()) continue;
+            ResultComparator.Comparison c =
+                    comparator.compare(r.name, previous.result.histogram, r.histogram);
+            if (c == null) continue;
+            r.putMetric("vs_prev_median_pct", c.medianChange * 100);
+            r.putMetric("vs_prev_p", c.p);
+            if (c.regression) {
+                r.putMetric("regression", 1);
+                regressions.add(c);
+            }
+        }
+        append(results, Build.FINGERPRINT, now);
+        return regressions;
+    }
+
+    /**
+     * Returns the most recent stored result for name from a run before
+     * beforeMillis, or null if there is none.
+     */
+    public Entry findPrevious(String name, long beforeMillis) throws IOException {
+        HashSet<String> names = new HashSet<String>();
+        names.add(name);
+        String line = findPreviousLines(names, beforeMillis).get(name);
+        return line != null ? parse(line) : null;
+    }
+
+    // Maps each of names to its latest line from before beforeMillis,
+    // without decoding any histograms.
+    private HashMap<String, String> findPreviousLines(final Set<String> names,
+                                                      final long beforeMillis)
+            throws IOException {
+        final HashMap<String, String> lines = new HashMap<String, String>();
+        final HashMap<String, Long> times = new HashMap<String, Long>();
+        scan(new LineVisitor() {
+            public void visit(long timestampMillis, String name, String line) {
+                if (timestampMillis >= beforeMillis || !names.contains(name)) return;
+                Long seen = times.get(name);
+                if (seen == null || timestampMillis >= seen) {
+                    times.put(name, timestampMillis);
+                    lines.put(name, line);
+                }
+            }
+        });
+        return lines;
+    }
+
+    private interface LineVisitor {
+        void visit(long timestampMillis, String name, String line);
+    }
+
+    // Feeds visitor the timestamp, name and text of each well-formed line.
+    private synchronized void scan(LineVisitor visitor) throws IOException {
+        BufferedReader reader;
+        try {
+            reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(mFile), "UTF-8"));
+        } catch (FileNotFoundException e) {
+            return;
+        }
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab1 = line.indexOf('\t');
+                int tab2 = tab1 < 0 ? -1 : line.indexOf('\t', tab1 + 1);
+                int tab3 = tab2 < 0 ? -1 : line.indexOf('\t', tab2 + 1);
+                if (tab3 < 0) continue;
+                try {
+                    visitor.visit(Long.parseLong(line.substring(0, tab1)),
+                            line.substring(tab2 + 1, tab3), line);
+                } catch (NumberFormatException e) {
+                    Log.w(TAG, "Skipping malformed line: " + line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static Entry parse(String line) {
+        String[] fields = line.split("\t", -1);
+        if (fields.length != 6) {
+            Log.w(TAG, "Skipping malformed line: " + line);
+            return null;
+        }
+        try {
+            BenchmarkResult result = new BenchmarkResult(fields[2],
+                    Float.parseFloat(fields[3]), LatencyHistogram.decode(fields[5]));
+            if (fields[4].length() > 0) {
+                for (String pair : fields[4].split(";")) {
+                    int eq = pair.lastIndexOf('=');
+                    result.putMetric(pair.substring(0, eq),
+                            Double.parseDouble(pair.substring(eq + 1)));
+                }
+            }
+            return new Entry(Long.parseLong(fields[0]), fields[1], result);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Skipping malformed line: " + e);
+            return null;
+        } catch (IndexOutOfBoundsException e) {
+            Log.w(TAG, "Skipping malformed line: " + e);
+            return null;
+        }
+    }
+}
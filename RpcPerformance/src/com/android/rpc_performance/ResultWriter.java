@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.rpc_performance;
+
+import android.os.Build;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * Writes a list of BenchmarkResults as JSON or CSV, for collection by
+ * scripts after an unattended run.
+ */
+public class ResultWriter {
+
+    private ResultWriter() {}
+
+    public static void writeJson(File file, List<BenchmarkResult> results) throws IOException {
+        JSONObject root = new JSONObject();
+        try {
+            root.put("fingerprint", Build.FINGERPRINT);
+            root.put("timestamp_ms", System.currentTimeMillis());
+            JSONArray array = new JSONArray();
+            for (BenchmarkResult r : results) {
+                array.put(r.toJson());
+            }
+            root.put("results", array);
+            write(file, root.toString(2));
+        } catch (JSONException e) {
+            throw new IOException("Can't encode results: " + e);
+        }
+    }
+
+    public static void writeCsv(File file, List<BenchmarkResult> results) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append(BenchmarkResult.CSV_HEADER).append('\n');
+        for (BenchmarkResult r : results) {
+            sb.append(r.toCsvRow()).append('\n');
+        }
+        write(file, sb.toString());
+    }
+
+    private static void write(File file, String contents) throws IOException {
+        Writer w = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            w.write(contents);
+        } finally {
+            w.close();
+        }
+    }
+}
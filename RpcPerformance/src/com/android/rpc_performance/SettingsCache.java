@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.rpc_performance;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.net.Uri;
+import android.util.Log;
+
+import java.util.HashMap;
+
+/**
+ * Client-side cache of content://settings/system values.  A miss costs
+ * one provider query; entries are dropped when a ContentObserver on the
+ * settings URI reports a change to their key (or to the whole table, if
+ * the notification doesn't name one).
+ *
+ * Without generation counters a change that lands while a miss is being
+ * fetched is lost: the fetch finishes afterwards and caches the old value
+ * until the next change.  With them every key has a counter, bumped on
+ * each change; a fetch records the counter before it queries and its
+ * result only counts as cached while the counter is unchanged.  A
+ * table-wide counter does the same for changes that name no key.
+ *
+ * Observer callbacks run on a binder thread, so the map is guarded by
+ * its own lock.  Call {@link #register} before use and
+ * {@link #unregister} when done.
+ */
+public class SettingsCache {
+
+    private static final String TAG = "SettingsCache";
+
+    private static final class Entry {
+        final String value;
+        final int generation;
+        final int tableGeneration;
+
+        Entry(String value, int generation, int tableGeneration) {
+            this.value = value;
+            this.generation = generation;
+            this.tableGeneration = tableGeneration;
+        }
+    }
+
+    private final ContentResolver cr;
+    private final Uri mUri;
+    private final boolean mUseGenerations;
+
+    // All guarded by mLock.
+    private final Object mLock = new Object();
+    private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+    private final HashMap<String, Integer> mGenerations = new HashMap<String, Integer>();
+    private int mTableGeneration;
+
+    private int mHits;
+    private int mMisses;
+    private int mInvalidations;
+
+    private final ContentObserver mObserver = new ContentObserver(null) {
+        @Override public void onChange(boolean selfChange) {
+            onChange(selfChange, null);
+        }
+
+        @Override public void onChange(boolean selfChange, Uri uri) {
+            String name = uri != null && !mUri.equals(uri) ? uri.getLastPathSegment() : null;
+            invalidate(name);
+        }
+    };
+
+    public SettingsCache(ContentResolver resolver, Uri uri, boolean useGenerations) {
+        cr = resolver;
+        mUri = uri;
+        mUseGenerations = useGenerations;
+    }
+
+    public void register() {
+        cr.registerContentObserver(mUri, true, mObserver);
+    }
+
+    public void unregister() {
+        cr.unregisterContentObserver(mObserver);
+    }
+
+    /** Returns the value of the named setting, from the cache if it can. */
+    public String getString(String name) {
+        int generation;
+        int tableGeneration;
+        synchronized (mLock) {
+            Integer g = mGenerations.get(name);
+            generation = g == null ? 0 : g;
+            tableGeneration = mTableGeneration;
+            Entry entry = mEntries.get(name);
+            if (entry != null && (!mUseGenerations || (entry.generation == generation
+                    && entry.tableGeneration == tableGeneration))) {
+                mHits++;
+                return entry.value;
+            }
+            mMisses++;
+        }
+
+        String value = queryProvider(name);
+        synchronized (mLock) {
+            mEntries.put(name, new Entry(value, generation, tableGeneration));
+        }
+        return value;
+    }
+
+    /** Drops the named entry, or every entry if name is null. */
+    public void invalidate(String name) {
+        synchronized (mLock) {
+            mInvalidations++;
+            if (name == null) {
+                mEntries.clear();
+                mTableGeneration++;
+            } else {
+                mEntries.remove(name);
+                Integer g = mGenerations.get(name);
+                mGenerations.put(name, g == null ? 1 : g + 1);
+            }
+        }
+    }
+
+    public int getHits() {
+        synchronized (mLock) {
+            return mHits;
+        }
+    }
+
+    public int getMisses() {
+        synchronized (mLock) {
+            return mMisses;
+        }
+    }
+
+    public int getInvalidations() {
+        synchronized (mLock) {
+            return mInvalidations;
+        }
+    }
+
+    /** Reads the named setting straight from the provider. */
+    String queryProvider(String name) {
+        Cursor c = null;
+        try {
+            c = cr.query(mUri, new String[]{"value"}, "name=?", new String[]{name}, null);
+            if (c == null) {
+                Log.w(TAG, "cursor null");
+                return null;
+            }
+            return c.moveToNext() ? c.getString(0) : null;
+        } catch (SQLException e) {
+            Log.w(TAG, "sqlite exception: " + e);
+            return null;
+        } finally {
+            if (c != null) c.close();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.rpc_performance;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.SQLException;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Read-heavy settings workload, run straight against the settings
+ * provider and through {@link SettingsCache} with and without generation
+ * counters.  Reads cycle over a few system settings; every Nth operation
+ * instead writes a new value to one of them.
+ *
+ * Each sample is one read; writes are not timed.  Results carry the hit
+ * rate and how many reads of the written key returned something other
+ * than the value last written, i.e. reads served before the change
+ * notification reached the cache.
+ */
+public class SettingsCacheBenchmark {
+
+    private static final String TAG = "SettingsCacheBenchmark";
+
+    private static final String WRITE_KEY = "dummy_for_testing";
+    private static final String[] READ_KEYS = {
+        "airplane_mode_on", "screen_brightness", "ringtone", WRITE_KEY,
+    };
+
+    // One write every this many operations; 0 means read only.
+    public static final int[] WRITE_INTERVALS = {0, 1000, 100, 10};
+
+    private static final int MODE_UNCACHED = 0;
+    private static final int MODE_CACHED = 1;
+    private static final int MODE_GENERATIONS = 2;
+    private static final String[] MODE_NAMES = {"uncached", "cached", "generations"};
+
+    private static final int MIN_OPS = 1000;
+
+    private final BenchmarkLoops mLoops;
+    private final ContentResolver cr;
+
+    public SettingsCacheBenchmark(BenchmarkLoops loops) {
+        mLoops = loops;
+        cr = loops.getContentResolver();
+    }
+
+    public List<BenchmarkResult> run() {
+        ArrayList<BenchmarkResult> results = new ArrayList<BenchmarkResult>();
+        for (int writeEvery : WRITE_INTERVALS) {
+            BenchmarkResult uncached = null;
+            for (int mode = MODE_UNCACHED; mode <= MODE_GENERATIONS; mode++) {
+                BenchmarkResult result = runMode(mode, writeEvery);
+                if (uncached == null) {
+                    uncached = result;
+                } else if (!result.isFailure() && !uncached.isFailure()) {
+                    result.putMetric("speedup",
+                            uncached.histogram.getMean() / result.histogram.getMean());
+                }
+                results.add(result);
+                if (result.isFailure()) return results;
+            }
+        }
+        return results;
+    }
+
+    private BenchmarkResult runMode(int mode, int writeEvery) {
+        String name = "settings_cache/" + MODE_NAMES[mode] + "/writes="
+                + (writeEvery == 0 ? "none" : "1in" + writeEvery);
+        LatencyHistogram histogram = new LatencyHistogram();
+        SettingsCache cache = new SettingsCache(cr, BenchmarkLoops.SYSTEM_SETTINGS_URI,
+                mode == MODE_GENERATIONS);
+        if (mode != MODE_UNCACHED) cache.register();
+
+        int ops = Math.max(MIN_OPS, mLoops.getIterations());
+        String lastWritten = cache.queryProvider(WRITE_KEY);
+        int writes = 0;
+        int staleReads = 0;
+        AllocationCounter allocs = new AllocationCounter();
+        int allocReps;
+        try {
+            long loopStart = System.nanoTime();
+            for (int i = 0; i < ops && mLoops.withinBudget(loopStart); i++) {
+                if (writeEvery > 0 && i % writeEvery == writeEvery - 1) {
+                    lastWritten = "v" + System.nanoTime();
+                    if (!write(lastWritten)) {
+                        return new BenchmarkResult(name, -999, histogram);
+                    }
+                    writes++;
+                    continue;
+                }
+
+                String key = READ_KEYS[i % READ_KEYS.length];
+                long lastTime = System.nanoTime();
+                String value = mode == MODE_UNCACHED
+                        ? cache.queryProvider(key) : cache.getString(key);
+                histogram.recordValue(System.nanoTime() - lastTime);
+                if (WRITE_KEY.equals(key) && !equal(value, lastWritten)) {
+                    staleReads++;
+                }
+            }
+
+            // Reads only; a write allocates in the provider's process.
+            allocReps = (int) Math.min(histogram.getCount(),
+                    AllocationCounter.ALLOC_PASS_ITERATIONS);
+            allocs.start();
+            try {
+                for (int i = 0; i < allocReps; i++) {
+                    String key = READ_KEYS[i % READ_KEYS.length];
+                    if (mode == MODE_UNCACHED) {
+                        cache.queryProvider(key);
+                    } else {
+                        cache.getString(key);
+                    }
+                }
+            } finally {
+                allocs.stop();
+            }
+        } finally {
+            if (mode != MODE_UNCACHED) cache.unregister();
+        }
+
+        BenchmarkResult result = new BenchmarkResult(name, histogram.getMeanMillis(), histogram);
+        if (mode != MODE_UNCACHED) {
+            int lookups = cache.getHits() + cache.getMisses();
+            result.putMetric("hit_rate", lookups > 0 ? (double) cache.getHits() / lookups : 0);
+            result.putMetric("invalidations", cache.getInvalidations());
+        }
+        result.putMetric("writes", writes);
+        result.putMetric("stale_reads", staleReads);
+        allocs.putAllocationMetrics(result, allocReps);
+        Log.v(TAG, result.toString());
+        return result;
+    }
+
+    private boolean write(String value) {
+        try {
+            ContentValues values = new ContentValues();
+            values.put("name", WRITE_KEY);
+            values.put("value", value);
+            cr.insert(BenchmarkLoops.SYSTEM_SETTINGS_URI, values);
+            return true;
+        } catch (SQLException e) {
+            Log.w(TAG, "sqliteexception during write: " + e);
+            return false;
+        }
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
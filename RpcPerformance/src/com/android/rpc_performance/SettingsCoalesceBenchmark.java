@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.rpc_performance;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.SQLException;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Issues a burst of settings writes, a millisecond apart, over two keys:
+ * once straight to the provider with one insert() each (what
+ * settings_write and settings_writedup do), and through
+ * {@link SettingsWriteCoalescer} with a range of flush windows.  The
+ * "dup" workload always writes the same value, "changing" a new one.
+ *
+ * Each sample is the caller's cost of one write.  Coalesced results carry
+ * the provider rows and transactions actually issued, the fraction of
+ * transactions saved, and how stale the provider was left (time from a
+ * value's first put to its flush).
+ */
+public class SettingsCoalesceBenchmark {
+
+    private static final String TAG = "SettingsCoalesceBenchmark";
+
+    private static final String[] KEYS = {"dummy_for_testing", "dummy_for_testing2"};
+
+    // Flush windows to try, in milliseconds.
+    public static final long[] WINDOWS_MILLIS = {0, 16, 100};
+
+    private static final long WRITE_GAP_MILLIS = 1;
+    private static final int MIN_OPS = 200;
+
+    private static final String[] WORKLOADS = {"dup", "changing"};
+
+    private final BenchmarkLoops mLoops;
+    private final ContentResolver cr;
+
+    public SettingsCoalesceBenchmark(BenchmarkLoops loops) {
+        mLoops = loops;
+        cr = loops.getContentResolver();
+    }
+
+    public List<BenchmarkResult> run() throws InterruptedException {
+        ArrayList<BenchmarkResult> results = new ArrayList<BenchmarkResult>();
+        HandlerThread thread = new HandlerThread("settings-coalescer");
+        thread.start();
+        Handler handler = new Handler(thread.getLooper());
+        try {
+            for (int workload = 0; workload < WORKLOADS.length; workload++) {
+                BenchmarkResult direct = runDirect(workload);
+                results.add(direct);
+                if (direct.isFailure()) return results;
+                for (long window : WINDOWS_MILLIS) {
+                    BenchmarkResult result = runCoalesced(workload, window, handler);
+                    results.add(result);
+                    if (result.isFailure()) return results;
+                }
+            }
+        } finally {
+            thread.quit();
+        }
+        return results;
+    }
+
+    private BenchmarkResult runDirect(int workload) throws InterruptedException {
+        String name = "settings_coalesce/" + WORKLOADS[workload] + "/direct";
+        LatencyHistogram histogram = new LatencyHistogram();
+        int ops = Math.max(MIN_OPS, mLoops.getIterations());
+        long loopStart = System.nanoTime();
+        for (int i = 0; i < ops && mLoops.withinBudget(loopStart); i++) {
+            long lastTime = System.nanoTime();
+            try {
+                ContentValues values = new ContentValues();
+                values.put("name", KEYS[i % KEYS.length]);
+                values.put("value", valueFor(workload, i));
+                cr.insert(BenchmarkLoops.SYSTEM_SETTINGS_URI, values);
+            } catch (SQLException e) {
+                Log.w(TAG, "sqliteexception during write: " + e);
+                return new BenchmarkResult(name, -999, histogram);
+            }
+            histogram.recordValue(System.nanoTime() - lastTime);
+            Thread.sleep(WRITE_GAP_MILLIS);
+        }
+
+        AllocationCounter allocs = new AllocationCounter();
+        int allocReps = (int) Math.min(histogram.getCount(),
+                AllocationCounter.ALLOC_PASS_ITERATIONS);
+        allocs.start();
+        try {
+            for (int i = 0; i < allocReps; i++) {
+                ContentValues values = new ContentValues();
+                values.put("name", KEYS[i % KEYS.length]);
+                values.put("value", valueFor(workload, i));
+                cr.insert(BenchmarkLoops.SYSTEM_SETTINGS_URI, values);
+            }
+        } catch (SQLException e) {
+            Log.w(TAG, "sqliteexception during write: " + e);
+            return new BenchmarkResult(name, -999, histogram);
+        } finally {
+            allocs.stop();
+        }
+
+        BenchmarkResult result = new BenchmarkResult(name, histogram.getMeanMillis(), histogram);
+        result.putMetric("requested", histogram.getCount());
+        result.putMetric("transactions", histogram.getCount());
+        allocs.putAllocationMetrics(result, allocReps);
+        return result;
+    }
+
+    private BenchmarkResult runCoalesced(int workload, long window, Handler handler)
+            throws InterruptedException {
+        String name = "settings_coalesce/" + WORKLOADS[workload] + "/window_ms=" + window;
+        LatencyHistogram histogram = new LatencyHistogram();
+        SettingsWriteCoalescer coalescer = new SettingsWriteCoalescer(
+                cr, BenchmarkLoops.SYSTEM_SETTINGS_URI, handler, window);
+        int ops = Math.max(MIN_OPS, mLoops.getIterations());
+        long loopStart = System.nanoTime();
+        for (int i = 0; i < ops && mLoops.withinBudget(loopStart); i++) {
+            String value = valueFor(workload, i);
+            long lastTime = System.nanoTime();
+            coalescer.put(KEYS[i % KEYS.length], value);
+            histogram.recordValue(System.nanoTime() - lastTime);
+            Thread.sleep(WRITE_GAP_MILLIS);
+        }
+        if (!coalescer.flush()) {
+            return new BenchmarkResult(name, -999, histogram);
+        }
+
+        BenchmarkResult result = new BenchmarkResult(name, histogram.getMeanMillis(), histogram);
+        int requested = coalescer.getRequested();
+        LatencyHistogram staleness = coalescer.getStaleness();
+        result.putMetric("requested", requested);
+        result.putMetric("deduped", coalescer.getDeduped());
+        result.putMetric("rows_written", coalescer.getRowsWritten());
+        result.putMetric("transactions", coalescer.getFlushes());
+        result.putMetric("transactions_saved",
+                requested > 0 ? 1.0 - (double) coalescer.getFlushes() / requested : 0);
+        result.putMetric("stale_avg_ms", staleness.getMeanMillis());
+        result.putMetric("stale_max_ms", staleness.getMax() / 1000000.0);
+
+        // Counted on a coalescer of its own, so the counts above stay put.
+        SettingsWriteCoalescer counted = new SettingsWriteCoalescer(
+                cr, BenchmarkLoops.SYSTEM_SETTINGS_URI, handler, window);
+        AllocationCounter allocs = new AllocationCounter();
+        int allocReps = (int) Math.min(histogram.getCount(),
+                AllocationCounter.ALLOC_PASS_ITERATIONS);
+        allocs.start();
+        try {
+            for (int i = 0; i < allocReps; i++) {
+                counted.put(KEYS[i % KEYS.length], valueFor(workload, i));
+            }
+        } finally {
+            allocs.stop();
+        }
+        counted.flush();
+        allocs.putAllocationMetrics(result, allocReps);
+        Log.v(TAG, result.toString());
+        return result;
+    }
+
+    private static String valueFor(int workload, int i) {
+        return workload == 0 ? "foo" : "v" + i;
+    }
+}
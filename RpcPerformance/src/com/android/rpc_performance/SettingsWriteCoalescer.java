@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.rpc_performance;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.SQLException;
+import android.net.Uri;
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Write-behind buffer for settings writes.  put() never touches the
+ * provider: a value equal to the one last written is dropped, and a value
+ * for a key already waiting replaces the waiting one.  The first put into
+ * an empty buffer schedules a flush windowMillis later on the given
+ * handler, which writes everything pending with one bulkInsert().
+ *
+ * A failed flush keeps its rows and tries again later, backing off
+ * from windowMillis up to MAX_RETRY_MILLIS between attempts.
+ *
+ * Keeps counts of requested writes, rows actually written and flushes,
+ * and how long values sat in the buffer (the time a reader of the
+ * provider would have seen an older value).
+ */
+public class SettingsWriteCoalescer {
+
+    private static final String TAG = "SettingsWriteCoalescer";
+
+    private static final long MAX_RETRY_MILLIS = 30 * 1000;
+
+    private final ContentResolver cr;
+    private final Uri mUri;
+    private final Handler mHandler;
+    private final long mWindowMillis;
+
+    // Serializes flushes, so a timed flush and an explicit one can't
+    // write the same rows twice.
+    private final Object mFlushLock = new Object();
+
+    // All guarded by mLock.
+    private final Object mLock = new Object();
+    private final HashMap<String, String> mPending = new HashMap<String, String>();
+    private final HashMap<String, Long> mPendingSince = new HashMap<String, Long>();
+    private final HashMap<String, String> mWritten = new HashMap<String, String>();
+    // What the flush in progress is writing, until it returns.
+    private final HashMap<String, String> mInFlight = new HashMap<String, String>();
+    private boolean mFlushScheduled;
+    private long mRetryMillis;
+    private int mRequested;
+    private int mDeduped;
+    private int mRowsWritten;
+    private int mFlushes;
+    private final LatencyHistogram mStaleness = new LatencyHistogram();
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        public void run() {
+            flush();
+        }
+    };
+
+    public SettingsWriteCoalescer(ContentResolver resolver, Uri uri, Handler handler,
+                                  long windowMillis) {
+        cr = resolver;
+        mUri = uri;
+        mHandler = handler;
+        mWindowMillis = windowMillis;
+    }
+
+    /** Queues name=value for the next flush. */
+    public void put(String name, String value) {
+        synchronized (mLock) {
+            mRequested++;
+            // While a flush is writing this key, mWritten is about to change
+            // under us, so just queue the value.
+            if (!mInFlight.containsKey(name) && value.equals(mWritten.get(name))) {
+                // Writing back what the provider already has cancels any
+                // other value still waiting for that key.
+                mDeduped++;
+                mPending.remove(name);
+                mPendingSince.remove(name);
+                return;
+            }
+            if (value.equals(mPending.put(name, value))) {
+                mDeduped++;
+            }
+            if (!mPendingSince.containsKey(name)) {
+                mPendingSince.put(name, System.nanoTime());
+            }
+            if (!mFlushScheduled) {
+                mFlushScheduled = true;
+                mHandler.postDelayed(mFlushRunnable, mWindowMillis);
+            }
+        }
+    }
+
+    /** Writes everything pending now.  Returns false if the write failed. */
+    public boolean flush() {
+        synchronized (mFlushLock) {
+            ContentValues[] rows;
+            synchronized (mLock) {
+                mHandler.removeCallbacks(mFlushRunnable);
+                mFlushScheduled = false;
+                if (mPending.isEmpty()) return true;
+                rows = new ContentValues[mPending.size()];
+                int i = 0;
+                for (Map.Entry<String, String> e : mPending.entrySet()) {
+                    rows[i] = new ContentValues();
+                    rows[i].put("name", e.getKey());
+                    rows[i].put("value", e.getValue());
+                    mInFlight.put(e.getKey(), e.getValue());
+                    i++;
+                }
+            }
+
+            try {
+                cr.bulkInsert(mUri, rows);
+            } catch (SQLException e) {
+                Log.w(TAG, "sqliteexception during flush: " + e);
+                synchronized (mLock) {
+                    mInFlight.clear();
+                    mRetryMillis = mRetryMillis == 0 ? Math.max(1, mWindowMillis)
+                            : Math.min(mRetryMillis * 2, MAX_RETRY_MILLIS);
+                    if (!mFlushScheduled) {
+                        mFlushScheduled = true;
+                        mHandler.postDelayed(mFlushRunnable, mRetryMillis);
+                    }
+                }
+                return false;
+            }
+
+            long now = System.nanoTime();
+            synchronized (mLock) {
+                mInFlight.clear();
+                mRetryMillis = 0;
+                mFlushes++;
+                mRowsWritten += rows.length;
+                for (ContentValues row : rows) {
+                    String name = row.getAsString("name");
+                    String value = row.getAsString("value");
+                    mWritten.put(name, value);
+                    // Only clear the key if nothing newer arrived mid-flush.
+                    if (value.equals(mPending.get(name))) {
+                        mPending.remove(name);
+                        Long since = mPendingSince.remove(name);
+                        if (since != null) mStaleness.recordValue(now - since);
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    public int getRequested() {
+        synchronized (mLock) {
+            return mRequested;
+        }
+    }
+
+    public int getDeduped() {
+        synchronized (mLock) {
+            return mDeduped;
+        }
+    }
+
+    public int getRowsWritten() {
+        synchronized (mLock) {
+            return mRowsWritten;
+        }
+    }
+
+    public int getFlushes() {
+        synchronized (mLock) {
+            return mFlushes;
+        }
+    }
+
+    /** How long values waited between their first put() and their flush. */
+    public LatencyHistogram getStaleness() {
+        LatencyHistogram copy = new LatencyHistogram();
+        synchronized (mLock) {
+            copy.add(mStaleness);
+        }
+        return copy;
+    }
+}
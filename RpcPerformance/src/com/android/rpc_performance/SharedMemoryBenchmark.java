@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.rpc_performance;
+
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+import android.util.Log;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Round-trips messages through MiscService over a pair of
+ * {@link SharedRing}s in one ashmem region, handed to the service once
+ * with IService.attachSharedRing().  After that no binder transaction is
+ * involved: a round trip is two copies into and out of shared memory,
+ * plus a doorbell write and read whenever the other side had gone to
+ * sleep.
+ *
+ * Uses the same payload sizes as {@link FramedSocketBenchmark} so the two
+ * sweeps can be read side by side.  Results carry MB/s (each direction
+ * counted once) and how often per round trip the client had to sleep on
+ * its doorbell rather than catching the reply while spinning.
+ */
+public class SharedMemoryBenchmark {
+
+    private static final String TAG = "SharedMemoryBenchmark";
+
+    // Data bytes in each ring; must hold the largest payload plus its length.
+    private static final int RING_CAPACITY = 2 << 20;
+
+    private static final long MAX_BYTES_PER_POINT = 64L << 20;
+    private static final int MIN_REPS = 5;
+
+    private final BenchmarkLoops mLoops;
+
+    public SharedMemoryBenchmark(BenchmarkLoops loops) {
+        mLoops = loops;
+    }
+
+    public List<BenchmarkResult> run() {
+        ArrayList<BenchmarkResult> results = new ArrayList<BenchmarkResult>();
+        IService stub = mLoops.getServiceStub();
+        if (stub == null) {
+            Log.v(TAG, "No service stub.");
+            results.add(new BenchmarkResult("shared_memory", -999, new LatencyHistogram()));
+            return results;
+        }
+
+        SharedMemory region = null;
+        ByteBuffer map = null;
+        ParcelFileDescriptor[] toServer = null;
+        ParcelFileDescriptor[] toClient = null;
+        SharedRing request = null;
+        try {
+            region = SharedMemory.create("rpcperf-ring", 2 * SharedRing.regionSize(RING_CAPACITY));
+            map = region.mapReadWrite();
+            toServer = ParcelFileDescriptor.createPipe();
+            toClient = ParcelFileDescriptor.createPipe();
+
+            request = new SharedRing(map, 0, RING_CAPACITY,
+                    null, new FileOutputStream(toServer[1].getFileDescriptor()));
+            SharedRing response = new SharedRing(map, SharedRing.regionSize(RING_CAPACITY),
+                    RING_CAPACITY, new FileInputStream(toClient[0].getFileDescriptor()), null);
+            request.init();
+            response.init();
+            stub.attachSharedRing(region, RING_CAPACITY, toServer[0], toClient[1]);
+            // The service has its own copies now.  Dropping ours lets the
+            // doorbell read see EOF if the service's echo thread goes away.
+            closeQuietly(toServer[0]);
+            closeQuietly(toClient[1]);
+
+            byte[] out = new byte[FramedSocketBenchmark.PAYLOAD_SIZES[
+                    FramedSocketBenchmark.PAYLOAD_SIZES.length - 1]];
+            byte[] in = new byte[out.length];
+            for (int i = 0; i < out.length; i++) {
+                out[i] = (byte) i;
+            }
+
+            for (int size : FramedSocketBenchmark.PAYLOAD_SIZES) {
+                BenchmarkResult result = runSize(size, request, response, out, in);
+                results.add(result);
+                if (result.isFailure()) break;
+            }
+        } catch (ErrnoException e) {
+            Log.v(TAG, "error creating shared memory: " + e);
+            results.add(new BenchmarkResult("shared_memory", -1.0f, new LatencyHistogram()));
+        } catch (IOException e) {
+            Log.v(TAG, "error in shared memory benchmark: " + e);
+            results.add(new BenchmarkResult("shared_memory", -1.0f, new LatencyHistogram()));
+        } catch (RemoteException e) {
+            Log.e(TAG, "attachSharedRing failed", e);
+            results.add(new BenchmarkResult("shared_memory", -999, new LatencyHistogram()));
+        } finally {
+            if (request != null) {
+                try { request.close(); } catch (IOException e) {}
+            }
+            closeAll(toServer);
+            closeAll(toClient);
+            if (map != null) SharedMemory.unmap(map);
+            if (region != null) region.close();
+        }
+        return results;
+    }
+
+    private BenchmarkResult runSize(int size, SharedRing request, SharedRing response,
+                                    byte[] out, byte[] in) throws IOException {
+        String name = "shared_memory/bytes=" + size;
+        LatencyHistogram histogram = new LatencyHistogram();
+        int reps = (int) Math.max(MIN_REPS,
+                Math.min(mLoops.getIterations(), MAX_BYTES_PER_POINT / size));
+
+        int sleepsBefore = response.getSleepCount();
+        long loopStart = System.nanoTime();
+        for (int i = 0; i < reps && mLoops.withinBudget(loopStart); i++) {
+            long beforeTime = System.nanoTime();
+            if (!request.offer(out, size)) {
+                Log.w(TAG, "Request ring full");
+                return new BenchmarkResult(name, -999, histogram);
+            }
+            if (!response.awaitReadable(MiscService.SHARED_RING_SPINS)) {
+                Log.w(TAG, "Response ring closed");
+                return new BenchmarkResult(name, -1.0f, histogram);
+            }
+            int length = response.poll(in);
+            histogram.recordValue(System.nanoTime() - beforeTime);
+
+            if (length != size) {
+                Log.w(TAG, "Got wrong message length back.  Got: " + length
+                      + "; wanted=" + size);
+                return new BenchmarkResult(name, -999, histogram);
+            }
+        }
+
+        int sleeps = response.getSleepCount() - sleepsBefore;
+
+        AllocationCounter allocs = new AllocationCounter();
+        int allocReps = (int) Math.min(histogram.getCount(),
+                AllocationCounter.ALLOC_PASS_ITERATIONS);
+        allocs.start();
+        try {
+            for (int i = 0; i < allocReps; i++) {
+                if (!request.offer(out, size)) {
+                    Log.w(TAG, "Request ring full");
+                    return new BenchmarkResult(name, -999, histogram);
+                }
+                if (!response.awaitReadable(MiscService.SHARED_RING_SPINS)) {
+                    Log.w(TAG, "Response ring closed");
+                    return new BenchmarkResult(name, -1.0f, histogram);
+                }
+                response.poll(in);
+            }
+        } finally {
+            allocs.stop();
+        }
+
+        BenchmarkResult result = new BenchmarkResult(name, histogram.getMeanMillis(), histogram);
+        double seconds = histogram.getMean() / 1000000000.0;
+        result.putMetric("MB_per_sec", seconds > 0 ? 2.0 * size / seconds / (1 << 20) : 0);
+        result.putMetric("sleeps_per_op", histogram.getCount() > 0
+                ? (double) sleeps / histogram.getCount() : 0);
+        allocs.putAllocationMetrics(result, allocReps);
+        return result;
+    }
+
+    private static void closeAll(ParcelFileDescriptor[] fds) {
+        if (fds == null) return;
+        for (ParcelFileDescriptor fd : fds) {
+            closeQuietly(fd);
+        }
+    }
+
+    private static void closeQuietly(ParcelFileDescriptor fd) {
+        try { fd.close(); } catch (IOException e) {}
+    }
+}
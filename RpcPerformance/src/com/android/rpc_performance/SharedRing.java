@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.rpc_performance;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A lock-free single-producer/single-consumer ring of length-prefixed
+ * messages, laid out in a shared memory mapping so the two ends can live
+ * in different processes.  One process creates each end over the same
+ * region; exactly one thread may call offer() and one may call poll().
+ *
+ * Layout at the given offset: a header holding the free-running head
+ * (producer) and tail (consumer) byte counters on separate cache lines,
+ * the consumer's "sleeping" flag and a "closed" flag, followed by
+ * capacity bytes of data.  Messages are a 4-byte length and the payload,
+ * and may wrap around the end of the data area.
+ *
+ * A consumer with nothing to read spins briefly, then sets its sleeping
+ * flag and blocks reading a doorbell pipe; a producer that sees the flag
+ * after publishing writes a byte to the pipe.  This is the futex protocol
+ * with a pipe standing in for the futex, since neither futex nor eventfd
+ * is reachable from Java.
+ */
+public class SharedRing {
+
+    private static final int HEAD = 0;
+    private static final int TAIL = 64;
+    private static final int SLEEPING = 128;
+    private static final int CLOSED = 132;
+    private static final int HEADER_SIZE = 192;
+
+    private static final int LENGTH_SIZE = 4;
+
+    // ByteBuffer accesses are plain loads and stores.  A volatile store
+    // followed by a volatile load is a full two-way fence on ART (dmb on
+    // arm, stlr+ldar on arm64), which is what orders them against the
+    // other process.
+    private static volatile int sFence;
+
+    private final ByteBuffer mBuf;
+    private final int mBase;
+    private final int mData;
+    private final int mCapacity;
+    private final int mMask;
+    private final InputStream mDoorbellIn;    // consumer end only
+    private final OutputStream mDoorbellOut;  // producer end only
+    private final byte[] mLength = new byte[LENGTH_SIZE];
+    private final byte[] mDrain = new byte[64];
+    private int mSleeps;
+
+    /** Bytes of shared memory needed for a ring with the given capacity. */
+    public static int regionSize(int capacity) {
+        return HEADER_SIZE + capacity;
+    }
+
+    /**
+     * @param region the mapped shared memory
+     * @param offset where this ring starts in region
+     * @param capacity data bytes; must be a power of two
+     * @param doorbellIn read end of the wakeup pipe, for the consumer end
+     * @param doorbellOut write end of the wakeup pipe, for the producer end
+     */
+    public SharedRing(ByteBuffer region, int offset, int capacity,
+                      InputStream doorbellIn, OutputStream doorbellOut) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        mBuf = region.duplicate();
+        mBase = offset;
+        mData = offset + HEADER_SIZE;
+        mCapacity = capacity;
+        mMask = capacity - 1;
+        mDoorbellIn = doorbellIn;
+        mDoorbellOut = doorbellOut;
+    }
+
+    /** Largest payload offer() can ever accept. */
+    public int maxPayload() {
+        return mCapacity - LENGTH_SIZE;
+    }
+
+    /** Resets the header.  Only the creator should call this, before sharing. */
+    public void init() {
+        mBuf.putInt(mBase + HEAD, 0);
+        mBuf.putInt(mBase + TAIL, 0);
+        mBuf.putInt(mBase + SLEEPING, 0);
+        mBuf.putInt(mBase + CLOSED, 0);
+        fullFence();
+    }
+
+    /**
+     * Publishes one message and wakes the consumer if it is asleep.
+     * Returns false, without blocking, if there is not enough room.
+     */
+    public boolean offer(byte[] src, int len) throws IOException {
+        int head = mBuf.getInt(mBase + HEAD);
+        int tail = mBuf.getInt(mBase + TAIL);
+        fullFence();  // don't overwrite anything the consumer hasn't finished reading
+        if (mCapacity - (head - tail) < LENGTH_SIZE + len) return false;
+
+        MiscService.putFrameLength(mLength, len);
+        copyIn(head, mLength, LENGTH_SIZE);
+        copyIn(head + LENGTH_SIZE, src, len);
+        fullFence();  // publish the payload before the new head
+        mBuf.putInt(mBase + HEAD, head + LENGTH_SIZE + len);
+
+        fullFence();
+        if (mBuf.getInt(mBase + SLEEPING) != 0) {
+            mDoorbellOut.write(1);
+        }
+        return true;
+    }
+
+    /**
+     * Copies the next message into dst and returns its length, or -1 if
+     * the ring is empty.
+     */
+    public int poll(byte[] dst) {
+        int tail = mBuf.getInt(mBase + TAIL);
+        int head = mBuf.getInt(mBase + HEAD);
+        if (head == tail) return -1;
+        fullFence();  // see the payload the producer published with head
+
+        copyOut(tail, mLength, LENGTH_SIZE);
+        int len = MiscService.getFrameLength(mLength);
+        copyOut(tail + LENGTH_SIZE, dst, len);
+        fullFence();  // finish reading before handing the space back
+        mBuf.putInt(mBase + TAIL, tail + LENGTH_SIZE + len);
+        return len;
+    }
+
+    /**
+     * Waits until a message can be polled, spinning up to spins times
+     * before sleeping on the doorbell.  Returns false once the ring has
+     * been closed and drained.
+     */
+    public boolean awaitReadable(int spins) throws IOException {
+        for (int i = 0; i < spins; i++) {
+            if (hasMessage()) return true;
+            if (isClosed()) return false;
+        }
+        try {
+            while (true) {
+                mBuf.putInt(mBase + SLEEPING, 1);
+                fullFence();
+                if (hasMessage()) return true;
+                if (isClosed()) return false;
+                // Stale doorbell bytes just cause another trip round the loop.
+                mSleeps++;
+                if (mDoorbellIn.read(mDrain) < 0) return false;
+            }
+        } finally {
+            mBuf.putInt(mBase + SLEEPING, 0);
+        }
+    }
+
+    /** How many times this consumer end has blocked on its doorbell. */
+    public int getSleepCount() {
+        return mSleeps;
+    }
+
+    /** Tells the consumer no more messages are coming. */
+    public void close() throws IOException {
+        fullFence();
+        mBuf.putInt(mBase + CLOSED, 1);
+        fullFence();
+        if (mBuf.getInt(mBase + SLEEPING) != 0) {
+            mDoorbellOut.write(1);
+        }
+    }
+
+    private boolean hasMessage() {
+        return mBuf.getInt(mBase + HEAD) != mBuf.getInt(mBase + TAIL);
+    }
+
+    private boolean isClosed() {
+        return mBuf.getInt(mBase + CLOSED) != 0;
+    }
+
+    private void copyIn(int index, byte[] src, int len) {
+        int pos = index & mMask;
+        int first = Math.min(len, mCapacity - pos);
+        mBuf.position(mData + pos);
+        mBuf.put(src, 0, first);
+        if (first < len) {
+            mBuf.position(mData);
+            mBuf.put(src, first, len - first);
+        }
+    }
+
+    private void copyOut(int index, byte[] dst, int len) {
+        int pos = index & mMask;
+        int first = Math.min(len, mCapacity - pos);
+        mBuf.position(mData + pos);
+        mBuf.get(dst, 0, first);
+        if (first < len) {
+            mBuf.position(mData);
+            mBuf.get(dst, first, len - first);
+        }
+    }
+
+    private static void fullFence() {
+        sFence = 0;
+        int unused = sFence;
+    }
+}
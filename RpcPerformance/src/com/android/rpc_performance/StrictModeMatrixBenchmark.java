@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.rpc_performance;
+
+import android.os.StrictMode;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures what each StrictMode detector adds to a few operations it
+ * may guard, one detector at a time:
+ *
+ *   disk_read   open, read 4 KB and close a file
+ *   disk_write  open, write 4 KB and close a file
+ *   network     send one byte over loopback UDP
+ *   slow_call   StrictMode.noteSlowCall()
+ *
+ * Every operation first runs with no detectors as its baseline, then
+ * once per ThreadPolicy detector (with a LAX VmPolicy) and once per
+ * VmPolicy detector (with a LAX ThreadPolicy).  A detector that catches
+ * the operation pays for building the violation; the others only pay
+ * for their checks, which is the cost of leaving them on.  Penalties are
+ * log-only and StrictMode rate-limits repeated log lines.
+ *
+ * Results carry overhead_us and overhead_pct over the baseline for the
+ * same operation, and the allocations per operation from a separate
+ * untimed pass.
+ */
+public class StrictModeMatrixBenchmark {
+
+    private static final String TAG = "StrictModeMatrixBenchmark";
+
+    public static final String[] OPERATIONS = {"disk_read", "disk_write", "network", "slow_call"};
+
+    public static final String[] THREAD_DETECTORS = {
+        "disk_reads", "disk_writes", "network", "custom_slow_calls", "unbuffered_io",
+        "resource_mismatches", "all",
+    };
+
+    public static final String[] VM_DETECTORS = {
+        "leaked_closable_objects", "leaked_sql_objects", "untagged_sockets",
+        "cleartext_network", "all",
+    };
+
+    private static final int BLOCK_SIZE = 4096;
+
+    private final BenchmarkLoops mLoops;
+    private final File mFile;
+    private final byte[] mBuf = new byte[BLOCK_SIZE];
+    private DatagramSocket mSocket;
+    private DatagramPacket mPacket;
+
+    public StrictModeMatrixBenchmark(BenchmarkLoops loops) {
+        mLoops = loops;
+        mFile = loops.getContext().getFileStreamPath("strictmode.dat");
+    }
+
+    public List<BenchmarkResult> run() {
+        ArrayList<BenchmarkResult> results = new ArrayList<BenchmarkResult>();
+        StrictMode.ThreadPolicy oldThreadPolicy = StrictMode.getThreadPolicy();
+        StrictMode.VmPolicy oldVmPolicy = StrictMode.getVmPolicy();
+        try {
+            StrictMode.setThreadPolicy(StrictMode.ThreadPolicy.LAX);
+            StrictMode.setVmPolicy(StrictMode.VmPolicy.LAX);
+            RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+            try {
+                raf.write(mBuf);
+            } finally {
+                raf.close();
+            }
+            mSocket = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+            // Sent to itself and never read; loopback drops what doesn't fit.
+            mPacket = new DatagramPacket(mBuf, 1, mSocket.getLocalAddress(),
+                    mSocket.getLocalPort());
+
+            for (String op : OPERATIONS) {
+                BenchmarkResult baseline = runPoint(op, "none",
+                        StrictMode.ThreadPolicy.LAX, StrictMode.VmPolicy.LAX);
+                results.add(baseline);
+                if (baseline.isFailure()) continue;
+                for (String detector : THREAD_DETECTORS) {
+                    results.add(withOverhead(baseline, runPoint(op, "thread:" + detector,
+                            threadPolicy(detector), StrictMode.VmPolicy.LAX)));
+                }
+                for (String detector : VM_DETECTORS) {
+                    results.add(withOverhead(baseline, runPoint(op, "vm:" + detector,
+                            StrictMode.ThreadPolicy.LAX, vmPolicy(detector))));
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Setup failed", e);
+            results.add(new BenchmarkResult("strictmode", -999, new LatencyHistogram()));
+        } finally {
+            StrictMode.setThreadPolicy(oldThreadPolicy);
+            StrictMode.setVmPolicy(oldVmPolicy);
+            if (mSocket != null) mSocket.close();
+            mFile.delete();
+        }
+        return results;
+    }
+
+    private BenchmarkResult runPoint(String op, String detector,
+                                     StrictMode.ThreadPolicy threadPolicy,
+                                     StrictMode.VmPolicy vmPolicy) {
+        String name = "strictmode/" + op + "/" + detector;
+        LatencyHistogram histogram = new LatencyHistogram();
+        AllocationCounter gcs = new AllocationCounter(false);
+        AllocationCounter allocs = new AllocationCounter();
+        int allocReps = 0;
+        StrictMode.setVmPolicy(vmPolicy);
+        StrictMode.setThreadPolicy(threadPolicy);
+        try {
+            long loopStart = System.nanoTime();
+            gcs.start();
+            try {
+                for (int i = 0; mLoops.keepRunning(i, loopStart); i++) {
+                    long lastTime = System.nanoTime();
+                    runOperation(op, i);
+                    histogram.recordValue(System.nanoTime() - lastTime);
+                }
+            } finally {
+                gcs.stop();
+            }
+
+            // Counting slows allocation down, so count over an untimed pass.
+            allocReps = (int) Math.min(histogram.getCount(),
+                    AllocationCounter.ALLOC_PASS_ITERATIONS);
+            allocs.start();
+            try {
+                for (int i = 0; i < allocReps; i++) {
+                    runOperation(op, i);
+                }
+            } finally {
+                allocs.stop();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, name + " failed", e);
+            return new BenchmarkResult(name, -999, histogram);
+        } finally {
+            StrictMode.setThreadPolicy(StrictMode.ThreadPolicy.LAX);
+            StrictMode.setVmPolicy(StrictMode.VmPolicy.LAX);
+        }
+        BenchmarkResult result = new BenchmarkResult(name, histogram.getMeanMillis(), histogram);
+        gcs.putGcMetrics(result);
+        allocs.putAllocationMetrics(result, allocReps);
+        Log.v(TAG, result.toString());
+        return result;
+    }
+
+    private void runOperation(String op, int i) throws IOException {
+        if ("disk_read".equals(op)) {
+            RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+            try {
+                raf.readFully(mBuf);
+            } finally {
+                raf.close();
+            }
+        } else if ("disk_write".equals(op)) {
+            mBuf[0] = (byte) i;
+            RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+            try {
+                raf.write(mBuf);
+            } finally {
+                raf.close();
+            }
+        } else if ("network".equals(op)) {
+            mSocket.send(mPacket);
+        } else {
+            StrictMode.noteSlowCall(TAG);
+        }
+    }
+
+    private static BenchmarkResult withOverhead(BenchmarkResult baseline,
+                                                BenchmarkResult result) {
+        if (result.isFailure() || baseline.avgMillis <= 0) return result;
+        double delta = result.avgMillis - baseline.avgMillis;
+        result.putMetric("overhead_us", delta * 1000);
+        result.putMetric("overhead_pct", delta / baseline.avgMillis * 100);
+        return result;
+    }
+
+    private static StrictMode.ThreadPolicy threadPolicy(String detector) {
+        StrictMode.ThreadPolicy.Builder b = new StrictMode.ThreadPolicy.Builder();
+        if ("disk_reads".equals(detector)) {
+            b.detectDiskReads();
+        } else if ("disk_writes".equals(detector)) {
+            b.detectDiskWrites();
+        } else if ("network".equals(detector)) {
+            b.detectNetwork();
+        } else if ("custom_slow_calls".equals(detector)) {
+            b.detectCustomSlowCalls();
+        } else if ("unbuffered_io".equals(detector)) {
+            b.detectUnbufferedIo();
+        } else if ("resource_mismatches".equals(detector)) {
+            b.detectResourceMismatches();
+        } else {
+            b.detectAll();
+        }
+        return b.penaltyLog().build();
+    }
+
+    private static StrictMode.VmPolicy vmPolicy(String detector) {
+        StrictMode.VmPolicy.Builder b = new StrictMode.VmPolicy.Builder();
+        if ("leaked_closable_objects".equals(detector)) {
+            b.detectLeakedClosableObjects();
+        } else if ("leaked_sql_objects".equals(detector)) {
+            b.detectLeakedSqlLiteObjects();
+        } else if ("untagged_sockets".equals(detector)) {
+            b.detectUntaggedSockets();
+        } else if ("cleartext_network".equals(detector)) {
+            b.detectCleartextNetwork();
+        } else {
+            b.detectAll();
+        }
+        return b.penaltyLog().build();
+    }
+}
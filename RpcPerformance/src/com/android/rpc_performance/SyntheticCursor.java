@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.rpc_performance;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.net.Uri;
+
+/**
+ * A cursor of generated rows, so Provider can return result sets of any
+ * shape without holding them in memory.  Column 0 is "_id"; the other
+ * columns are blobs of a fixed size, or short strings when the blob size
+ * is 0.  Every blob is the same shared array.
+ *
+ * The shape comes from query parameters on the provider URI; see
+ * {@link #buildUri}.
+ */
+public class SyntheticCursor extends AbstractCursor {
+
+    public static final String PARAM_ROWS = "rows";
+    public static final String PARAM_COLUMNS = "cols";
+    public static final String PARAM_BLOB_SIZE = "blob";
+
+    private final int mRows;
+    private final String[] mColumns;
+    private final byte[] mBlob;
+
+    public SyntheticCursor(int rows, int columns, int blobSize) {
+        mRows = rows;
+        mColumns = new String[Math.max(columns, 1)];
+        mColumns[0] = "_id";
+        for (int i = 1; i < mColumns.length; i++) {
+            mColumns[i] = "c" + i;
+        }
+        mBlob = blobSize > 0 ? new byte[blobSize] : null;
+        if (mBlob != null) {
+            for (int i = 0; i < blobSize; i++) {
+                mBlob[i] = (byte) i;
+            }
+        }
+    }
+
+    /** Returns base with the query parameters asking for this shape. */
+    public static Uri buildUri(Uri base, int rows, int columns, int blobSize) {
+        return base.buildUpon()
+                .appendQueryParameter(PARAM_ROWS, Integer.toString(rows))
+                .appendQueryParameter(PARAM_COLUMNS, Integer.toString(columns))
+                .appendQueryParameter(PARAM_BLOB_SIZE, Integer.toString(blobSize))
+                .build();
+    }
+
+    /** Returns the cursor uri asks for, or null if it doesn't ask for one. */
+    public static SyntheticCursor fromUri(Uri uri) {
+        String rows = uri.getQueryParameter(PARAM_ROWS);
+        if (rows == null) return null;
+        return new SyntheticCursor(Integer.parseInt(rows),
+                intParameter(uri, PARAM_COLUMNS, 1), intParameter(uri, PARAM_BLOB_SIZE, 0));
+    }
+
+    private static int intParameter(Uri uri, String name, int defaultValue) {
+        String value = uri.getQueryParameter(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    @Override public int getCount() {
+        return mRows;
+    }
+
+    @Override public String[] getColumnNames() {
+        return mColumns;
+    }
+
+    @Override public int getType(int column) {
+        if (column == 0) return Cursor.FIELD_TYPE_INTEGER;
+        return mBlob != null ? Cursor.FIELD_TYPE_BLOB : Cursor.FIELD_TYPE_STRING;
+    }
+
+    @Override public byte[] getBlob(int column) {
+        return column == 0 || mBlob == null ? null : mBlob;
+    }
+
+    @Override public String getString(int column) {
+        if (column == 0) return Integer.toString(getPosition());
+        return mBlob != null ? null : "value" + column;
+    }
+
+    @Override public short getShort(int column) {
+        return (short) getLong(column);
+    }
+
+    @Override public int getInt(int column) {
+        return (int) getLong(column);
+    }
+
+    @Override public long getLong(int column) {
+        return column == 0 ? getPosition() : 0;
+    }
+
+    @Override public float getFloat(int column) {
+        return getLong(column);
+    }
+
+    @Override public double getDouble(int column) {
+        return getLong(column);
+    }
+
+    @Override public boolean isNull(int column) {
+        return false;
+    }
+}